@@ -13,6 +13,8 @@ LOCAL_MODULE_TAGS := optional
 
 LOCAL_MANIFEST_FILE := app/src/main/AndroidManifest.xml
 LOCAL_SRC_FILES := $(call all-java-files-under, app/src/main) $(call all-Iaidl-files-under, app/src/main)
+# Parcelables imported by the interface are declared here, not compiled
+LOCAL_AIDL_INCLUDES := $(LOCAL_PATH)/app/src/main/aidl
 LOCAL_REQUIRED_MODULES := projekt.substratum.theme.xml
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/app/src/main/res
 
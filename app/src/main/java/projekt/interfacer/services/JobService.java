@@ -20,37 +20,46 @@ package projekt.interfacer.services;
 
 import android.app.ActivityManager;
 import android.app.ActivityManagerNative;
+import android.app.IProcessObserver;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.IntentSender;
 import android.content.om.IOverlayManager;
 import android.content.om.OverlayInfo;
 import android.content.pm.IPackageDeleteObserver;
 import android.content.pm.IPackageInstallObserver2;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
 import android.content.pm.Signature;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.graphics.Typeface;
+import android.media.AudioManager;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -58,28 +67,89 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import projekt.interfacer.services.ResourceLocks.Priority;
+import projekt.interfacer.services.ResourceLocks.Resource;
+import projekt.interfacer.utils.Durability;
 import projekt.interfacer.utils.IOUtils;
+import projekt.interfacer.utils.IoThrottle;
+import projekt.interfacer.utils.LogUtils;
+import projekt.interfacer.utils.MediaStoreBatch;
+import projekt.interfacer.utils.Metrics;
+import projekt.interfacer.utils.PackageContextCache;
+import projekt.interfacer.utils.ProfilePack;
+import projekt.interfacer.utils.SoundPreparer;
 import projekt.interfacer.utils.SoundUtils;
+import projekt.interfacer.utils.ThemeDiff;
+import projekt.substratum.FileOperation;
 import projekt.substratum.IInterfacerInterface;
+import projekt.substratum.ThemeState;
 
+// Timers, locks, tickets and barriers are scopes: try blocks that never touch them are intended
+@SuppressWarnings("try")
 public class JobService extends Service {
     private static final String TAG = JobService.class.getSimpleName();
-    private static final int BASE_API_VERSION = 1;
-    private static final boolean DEBUG = true;
+    private static final int BASE_API_VERSION = 2;
     private static final String INTENT_STATUS_CHANGED = "projekt.interfacer.STATUS_CHANGED";
     private static final String PRIMARY_COMMAND_KEY = "primary_command_key";
     private static final String COMMAND_VALUE_JOB_COMPLETE = "job_complete";
     private static final String COMMAND_VALUE_BOOTANIMATION = "bootanimation";
     private static final String COMMAND_VALUE_FONTS = "fonts";
     private static final String COMMAND_VALUE_AUDIO = "audio";
+    private static final String PROFILE_CHANGES_KEY = "profile_changes";
+    private static final String NO_CHANGE_KEY = "no_change";
+    private static final String SHIM_ELAPSED_KEY = "shim_elapsed_ms";
+    private static final String STAGED_BOOTANIMATION = "bootanimation.zip";
+    private static final String MOVE_RESULT_KEY = "move_result";
+    private static final String IO_RATE_PROPERTY = "persist.interfacer.io_rate";
+    private static final String IO_BURST_PROPERTY = "persist.interfacer.io_burst";
+    private static final long DEFAULT_IO_BURST = 8 * 1024 * 1024;
+    // Sound packs up to this size are extracted into the heap, 0 always extracts to disk
+    private static final String SOUNDS_IN_MEMORY_PROPERTY = "persist.interfacer.sounds_in_memory";
+    private static final int DEFAULT_SOUNDS_IN_MEMORY = 2 * 1024 * 1024;
+    // One of none, commit or file, see Durability.Mode
+    private static final String DURABILITY_PROPERTY = "persist.interfacer.durability";
+    private static final String FILE_OPERATION_RESULTS_KEY = "file_operation_results";
+    private static final int FILE_OP_THREADS = 4;
+    private static final int WARM_UP_TIMEOUT_SECONDS = 10;
+    private static final int USER_THREADS = 8;
+    private static final int UNINSTALL_THREADS = 4;
+    private static final String UNINSTALL_RESULTS_KEY = "uninstall_results";
+    private static final int[] SYSTEM_USER = {UserHandle.USER_SYSTEM};
+    private static final List<String> NO_PACKAGES = Collections.emptyList();
+    private static final String INTENT_OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+    private static final String PROFILE_PACK_PREFIX = "profile/";
+    private static final String INTENT_INSTALL_COMMITTED = "projekt.interfacer.INSTALL_COMMITTED";
+    private static final String PERMISSION_INSTALL_RESULT =
+            "projekt.interfacer.permission.INSTALL_RESULT";
+    private static final String INSTALL_SESSION_APK = "base.apk";
+    private static final int PACKAGE_TIMEOUT_SECONDS = 120;
     private static final String INTERFACER_PACKAGE = "projekt.interfacer";
     private static final String SUBSTRATUM_PACKAGE = "projekt.substratum";
     private static final String[] AUTHORIZED_CALLERS = new String[]{
@@ -110,6 +180,9 @@ public class JobService extends Service {
     private static final Signature[] AUTHORIZED_SIGNATURES = new Signature[]{
             SUBSTRATUM_SIGNATURE,
     };
+    // In order of preference when a pack ships more than one, prepared wavs only apply to UI sounds
+    private static final String[] UI_SOUND_EXTENSIONS = {SoundPreparer.EXTENSION, ".ogg", ".mp3"};
+    private static final String[] SOUND_EXTENSIONS = {".ogg", ".mp3"};
     private static List<Sound> SOUNDS = Arrays.asList(
             new Sound(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH, "/SoundsCache/ui/", "Effect_Tick",
                     "Effect_Tick", RingtoneManager.TYPE_RINGTONE),
@@ -136,31 +209,147 @@ public class JobService extends Service {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             synchronized (mLock) {
-                mSigOverride = Settings.Secure.getIntForUser(getSubsContext().getContentResolver(),
+                mSigOverride = Settings.Secure.getIntForUser(getContentResolver(),
                         Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES, 0,
                         UserHandle.USER_CURRENT) == 1;
             }
         }
     };
 
-    private static IOverlayManager mOMS;
-    private static IPackageManager mPM;
-    private static boolean isWaiting = false;
+    private static volatile IOverlayManager mOMS;
+    private static volatile IPackageManager mPM;
+    private static volatile Object sActivityManager;
+    private static volatile Method sKillApplicationProcess;
     private final Object mLock = new Object();
     private boolean mSigOverride;
     private MyObserver mObserver = new MyObserver(new Handler());
+    private PackageContextCache mContextCache;
+    private StagingArea mStaging;
+    private ThemeIndex mThemeIndex;
+    // Only touched on the main thread
+    private LocaleChanger mLocaleChanger;
+    private final ArrayDeque<LocaleChanger> mPendingShims = new ArrayDeque<>();
+    private final ResourceLocks mResourceLocks = new ResourceLocks();
+    private final Supersession mSupersession = new Supersession(mResourceLocks);
+    private final ExecutorService mFileOpExecutor = Executors.newFixedThreadPool(FILE_OP_THREADS);
+    private final ExecutorService mUserExecutor = Executors.newFixedThreadPool(USER_THREADS);
+    private final ExecutorService mPackageExecutor =
+            Executors.newFixedThreadPool(UNINSTALL_THREADS);
+    private final CountDownLatch mWarmedUp = new CountDownLatch(1);
+
+    // Overlays may also be switched by others, e.g. the system on package updates
+    private final BroadcastReceiver mOverlayReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mThemeIndex.invalidate(Resource.OVERLAYS);
+        }
+    };
+
+    private final ThemeIndex.Loader mThemeLoader = new ThemeIndex.Loader() {
+        @Override
+        public List<String> loadOverlays() {
+            try {
+                Metrics.addIpc();
+                Map<String, List<OverlayInfo>> overlays =
+                        new TreeMap<>(getOMS().getAllOverlays(UserHandle.USER_SYSTEM));
+                List<String> enabled = new ArrayList<>();
+                for (List<OverlayInfo> infos : overlays.values()) {
+                    for (OverlayInfo info : infos) {
+                        if (info.isEnabled()) {
+                            enabled.add(info.packageName);
+                        }
+                    }
+                }
+                return enabled;
+            } catch (RemoteException e) {
+                Log.e(TAG, "", e);
+            }
+            return null;
+        }
+
+        @Override
+        public String loadFontHash() {
+            ThemeDiff.Source fonts =
+                    ThemeDiff.fromDirectory(new File(IOUtils.SYSTEM_THEME_FONT_PATH));
+            if (fonts.paths().isEmpty()) {
+                return null;
+            }
+
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                for (String path : fonts.paths()) {
+                    digest.update((path + ":" + fonts.digest(path) + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                return IOUtils.toHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(TAG, "", e);
+            }
+            return null;
+        }
+
+        @Override
+        public Bundle loadSoundFiles() {
+            Bundle files = new Bundle();
+            for (Sound sound : SOUNDS) {
+                for (String extension : sound.getExtensions()) {
+                    File file = new File(sound.themePath, sound.soundPath + extension);
+                    if (file.isFile()) {
+                        files.putString(sound.soundName, file.getAbsolutePath());
+                        break;
+                    }
+                }
+            }
+            return files;
+        }
+
+        @Override
+        public boolean loadBootAnimation() {
+            return new File(IOUtils.SYSTEM_THEME_BOOTANIMATION_PATH).isFile();
+        }
+    };
+    private long mCreateMillis, mWarmUpMillis, mFirstBindMillis = -1;
     private final IInterfacerInterface.Stub mBinder = new IInterfacerInterface.Stub() {
         @Override
         public void installPackage(List<String> paths) {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            for (String path : paths) {
-                log("Installer - installing \'" + path + "\'...");
-                PackageInstallObserver observer = new PackageInstallObserver();
-                install(path, observer);
+            try (Metrics.Timer job = Metrics.beginJob("installPackage");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.BULK,
+                         Resource.PACKAGES)) {
+                for (String path : paths) {
+                    held.yield();
+                    log("Installer - installing \'%s\'...", path);
+                    PackageInstallObserver observer = new PackageInstallObserver();
+                    install(path, observer);
+                }
+                mThemeIndex.invalidate(Resource.OVERLAYS);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
+        }
+
+        @Override
+        public void installPackageFromFd(ParcelFileDescriptor[] fds) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) {
+                closeQuietly(fds);
+                return;
+            }
+
+            try (Metrics.Timer job = Metrics.beginJob("installPackageFromFd");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.BULK,
+                         Resource.PACKAGES)) {
+                for (ParcelFileDescriptor fd : fds) {
+                    held.yield();
+                    log("Installer - installing from descriptor...");
+                    if (!install(fd)) {
+                        job.fail();
+                    }
+                }
+                mThemeIndex.invalidate(Resource.OVERLAYS);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
             }
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -168,19 +357,19 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            for (String p : packages) {
-                // TODO: Fix isOverlayEnabled function, for now it's causing NPE
-                if (isOverlayEnabled(p)) {
-                    log("Remover - disabling overlay for \'" + p + "\'...");
-                    switchOverlay(p, false);
-                }
+            try (Metrics.Timer job = Metrics.beginJob("uninstallPackage")) {
+                removePackages(packages, restartUi, job);
+            }
+        }
 
-                log("Remover - uninstalling \'" + p + "\'...");
-                PackageDeleteObserver observer = new PackageDeleteObserver();
-                uninstall(p, observer);
+        @Override
+        public int[] uninstallPackages(List<String> packages, boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("uninstallPackages")) {
+                return removePackages(packages, restartUi, job);
             }
-            if (restartUi) restartUi();
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -188,9 +377,11 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("Restarting SystemUI...");
-            restartUi();
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            try (Metrics.Timer job = Metrics.beginJob("restartSystemUI")) {
+                log("Restarting SystemUI...");
+                restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
         }
 
         @Override
@@ -198,7 +389,10 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            new LocaleChanger(getSubsContext(), firstDelay, secondDelay).run();
+            // Runs until the shim reports completion, which closes the job
+            Metrics.Timer job = Metrics.beginJob("configurationShim");
+            job.detach();
+            new LocaleChanger(getSubsContext(), firstDelay, secondDelay, job).enqueue();
         }
 
         @Override
@@ -206,15 +400,52 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            if (name == null) {
-                log("Restoring system boot animation...");
-                clearBootAnimation();
-            } else {
-                log("Configuring themed boot animation...");
-                copyBootAnimation(name);
+            try (Metrics.Timer job = Metrics.beginJob("applyBootanimation");
+                 Supersession.Ticket ticket = mSupersession.acquire(Resource.BOOTANIMATION)) {
+                boolean unchanged = false;
+                if (ticket.isCanceled()) {
+                    log("Superseded by a newer boot animation request, skipping...");
+                } else if (name == null) {
+                    log("Restoring system boot animation...");
+                    clearBootAnimation();
+                } else {
+                    File source = new File(name);
+                    String fingerprint = getBootAnimationFingerprint(source);
+                    if (isApplied(Resource.BOOTANIMATION, fingerprint)) {
+                        log("Boot animation is already applied, skipping...");
+                        unchanged = true;
+                        // Consumed just like an applied one would have been
+                        source.delete();
+                    } else {
+                        log("Configuring themed boot animation...");
+                        copyBootAnimation(name, fingerprint);
+                    }
+                }
+                informCompletion(COMMAND_VALUE_BOOTANIMATION);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, getNoChangeExtras(unchanged));
+            }
+        }
+
+        @Override
+        public void applyBootanimationFromFd(ParcelFileDescriptor fd) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) {
+                closeQuietly(fd);
+                return;
+            }
+
+            try (Metrics.Timer job = Metrics.beginJob("applyBootanimationFromFd");
+                 Supersession.Ticket ticket = mSupersession.acquire(Resource.BOOTANIMATION)) {
+                if (ticket.isCanceled()) {
+                    log("Superseded by a newer boot animation request, skipping...");
+                    closeQuietly(fd);
+                } else {
+                    log("Configuring themed boot animation from descriptor...");
+                    copyBootAnimation(fd);
+                }
+                informCompletion(COMMAND_VALUE_BOOTANIMATION);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
             }
-            informCompletion(COMMAND_VALUE_BOOTANIMATION);
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -222,16 +453,34 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            if (pid == null) {
-                log("Restoring system font...");
-                clearFonts();
-            } else {
-                log("Configuring theme font...");
-                copyFonts(pid, fileName);
+            try (Metrics.Timer job = Metrics.beginJob("applyFonts");
+                 Supersession.Ticket ticket = mSupersession.acquire(Resource.FONTS)) {
+                boolean unchanged = false;
+                boolean changed = false;
+                if (ticket.isCanceled()) {
+                    log("Superseded by a newer font request, skipping...");
+                } else if (pid == null) {
+                    log("Restoring system font...");
+                    clearFonts();
+                    changed = true;
+                } else {
+                    String fingerprint = getPackFingerprint(pid, "fonts", fileName);
+                    // A job superseded mid-flight may have committed without refreshing SystemUI
+                    if (!ticket.supersedes && isApplied(Resource.FONTS, fingerprint)) {
+                        log("Theme font is already applied, skipping...");
+                        unchanged = true;
+                    } else {
+                        log("Configuring theme font...");
+                        changed = copyFonts(pid, fileName, fingerprint, ticket.signal);
+                    }
+                }
+                // Whatever this job committed is on disk, even if it was superseded since
+                if (changed) {
+                    restartUi();
+                }
+                informCompletion(COMMAND_VALUE_FONTS);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, getNoChangeExtras(unchanged));
             }
-            restartUi();
-            informCompletion(COMMAND_VALUE_FONTS);
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -239,16 +488,151 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            if (pid == null) {
-                log("Restoring system sounds...");
-                clearSounds(JobService.this);
-            } else {
-                log("Configuring theme sounds...");
-                applyThemedSounds(pid, fileName);
+            try (Metrics.Timer job = Metrics.beginJob("applyAudio");
+                 Supersession.Ticket ticket = mSupersession.acquire(Resource.AUDIO)) {
+                boolean unchanged = false;
+                boolean changed = false;
+                if (ticket.isCanceled()) {
+                    log("Superseded by a newer sound request, skipping...");
+                } else if (pid == null) {
+                    log("Restoring system sounds...");
+                    clearSounds(JobService.this);
+                    changed = true;
+                } else {
+                    String fingerprint = getPackFingerprint(pid, "audio", fileName);
+                    // A job superseded mid-flight may have committed without refreshing SystemUI
+                    if (!ticket.supersedes && isApplied(Resource.AUDIO, fingerprint)) {
+                        log("Theme sounds are already applied, skipping...");
+                        unchanged = true;
+                    } else {
+                        log("Configuring theme sounds...");
+                        changed = applyThemedSounds(pid, fileName, fingerprint, ticket.signal);
+                    }
+                }
+                // Whatever this job committed is on disk, even if it was superseded since
+                if (changed) {
+                    restartUi();
+                }
+                informCompletion(COMMAND_VALUE_AUDIO);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, getNoChangeExtras(unchanged));
             }
-            restartUi();
-            informCompletion(COMMAND_VALUE_AUDIO);
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+        }
+
+        @Override
+        public String prepareBootanimation(String name) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("prepareBootanimation");
+                 IoThrottle.Scope io = backgroundIo()) {
+                StagingArea.Staged staged = mStaging.create(Resource.BOOTANIMATION);
+                staged.restoresDefault = name == null;
+                if (!staged.restoresDefault) {
+                    File source = new File(name);
+                    staged.fingerprint = getBootAnimationFingerprint(source);
+                    staged.unchanged = isApplied(Resource.BOOTANIMATION, staged.fingerprint);
+                    if (staged.unchanged) {
+                        source.delete();
+                    }
+                }
+                if (!staged.restoresDefault && !staged.unchanged &&
+                        !stageBootAnimation(staged.dir, name)) {
+                    mStaging.abandon(staged);
+                    job.fail();
+                    return null;
+                }
+                return publish(staged, job);
+            }
+        }
+
+        @Override
+        public String prepareFonts(String pid, String fileName) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("prepareFonts");
+                 IoThrottle.Scope io = backgroundIo()) {
+                StagingArea.Staged staged = mStaging.create(Resource.FONTS);
+                staged.restoresDefault = pid == null;
+                if (!staged.restoresDefault) {
+                    staged.packId = getPackId(pid, fileName);
+                    staged.fingerprint = getPackFingerprint(pid, "fonts", fileName);
+                    staged.unchanged = isApplied(Resource.FONTS, staged.fingerprint);
+                }
+                if (!staged.restoresDefault && !staged.unchanged &&
+                        !stageFonts(staged.dir, pid, fileName, staged.signal)) {
+                    mStaging.abandon(staged);
+                    job.fail();
+                    return null;
+                }
+                return publish(staged, job);
+            }
+        }
+
+        @Override
+        public String prepareAudio(String pid, String fileName) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("prepareAudio");
+                 IoThrottle.Scope io = backgroundIo()) {
+                StagingArea.Staged staged = mStaging.create(Resource.AUDIO);
+                staged.restoresDefault = pid == null;
+                if (!staged.restoresDefault) {
+                    staged.packId = getPackId(pid, fileName);
+                    staged.fingerprint = getPackFingerprint(pid, "audio", fileName);
+                    staged.unchanged = isApplied(Resource.AUDIO, staged.fingerprint);
+                    if (!staged.unchanged) {
+                        Map<String, byte[]> sounds =
+                                stageSounds(staged.dir, pid, fileName, staged.signal);
+                        if (sounds != null) {
+                            staged.sounds = sounds;
+                        }
+                    }
+                }
+                return publish(staged, job);
+            }
+        }
+
+        @Override
+        public void commitPrepared(String token) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return;
+
+            StagingArea.Staged staged = mStaging.take(token);
+            if (staged == null) {
+                log("No prepared job for token \'%s\', skipping...", token);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                return;
+            }
+
+            try (Metrics.Timer job = Metrics.beginJob("commitPrepared");
+                 Supersession.Ticket ticket = mSupersession.acquire(staged.resource)) {
+                boolean unchanged = false;
+                if (ticket.isCanceled()) {
+                    log("Superseded by a newer request, skipping...");
+                } else if (!staged.unchanged) {
+                    commitStaged(staged);
+                } else if (isApplied(staged.resource, staged.fingerprint)) {
+                    log("Prepared job '%s' is already applied, skipping...", token);
+                    unchanged = true;
+                } else {
+                    // Nothing was staged and the applied state moved on since
+                    Log.e(TAG, "Applied state changed since '" + token + "' was prepared");
+                    job.fail();
+                }
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, getNoChangeExtras(unchanged));
+            } finally {
+                staged.delete();
+            }
+        }
+
+        @Override
+        public void discardPrepared(String token) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return;
+
+            mStaging.discard(token);
         }
 
         @Override
@@ -256,12 +640,16 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            for (String p : packages) {
-                log("Enabler - enabling overlay for \'" + p + "\'...");
-                switchOverlay(p, true);
+            try (Metrics.Timer job = Metrics.beginJob("enableOverlay");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                for (String p : packages) {
+                    log("Enabler - enabling overlay for \'%s\'...", p);
+                    switchOverlay(p, true);
+                }
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
             }
-            if (restartUi) restartUi();
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -269,12 +657,16 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            for (String p : packages) {
-                log("Disabler - disabling overlay for \'" + p + "\'...");
-                switchOverlay(p, false);
+            try (Metrics.Timer job = Metrics.beginJob("disableOverlay");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                for (String p : packages) {
+                    log("Disabler - disabling overlay for \'%s\'...", p);
+                    switchOverlay(p, false);
+                }
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
             }
-            if (restartUi) restartUi();
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -282,20 +674,82 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("PriorityJob - processing priority changes...");
-            try {
-                for (int i = 0; i < packages.size() - 1; i++) {
-                    String parentName = packages.get(i);
-                    String packageName = packages.get(i + 1);
-
-                    getOMS().setPriority(packageName, parentName,
-                            UserHandle.USER_SYSTEM);
+            try (Metrics.Timer job = Metrics.beginJob("changePriority");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                log("PriorityJob - processing priority changes...");
+                try {
+                    for (int i = 0; i < packages.size() - 1; i++) {
+                        String parentName = packages.get(i);
+                        String packageName = packages.get(i + 1);
+
+                        Metrics.addIpc();
+                        getOMS().setPriority(packageName, parentName,
+                                UserHandle.USER_SYSTEM);
+                    }
+                } catch (RemoteException e) {
+                    job.fail();
                 }
-            } catch (RemoteException e) {
-                // Exception
+                mThemeIndex.invalidate(Resource.OVERLAYS);
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
+        }
+
+        @Override
+        public int[] enableOverlayForUsers(List<String> packages, int[] userIds,
+                                           boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("enableOverlayForUsers");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                log("Enabler - enabling %d overlays for %d users...", packages.size(),
+                        userIds.length);
+                OverlayResult[] results = forEachUser(userIds,
+                        userId -> applyOverlayState(packages, NO_PACKAGES, userId));
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                return OverlayResult.failures(results);
+            }
+        }
+
+        @Override
+        public int[] disableOverlayForUsers(List<String> packages, int[] userIds,
+                                            boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("disableOverlayForUsers");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                log("Disabler - disabling %d overlays for %d users...", packages.size(),
+                        userIds.length);
+                OverlayResult[] results = forEachUser(userIds,
+                        userId -> applyOverlayState(NO_PACKAGES, packages, userId));
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                return OverlayResult.failures(results);
+            }
+        }
+
+        @Override
+        public int[] changePriorityForUsers(List<String> packages, int[] userIds,
+                                            boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("changePriorityForUsers");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Priority.INTERACTIVE,
+                         Resource.OVERLAYS)) {
+                log("PriorityJob - processing priority changes for %d users...", userIds.length);
+                OverlayResult[] results = forEachUser(userIds,
+                        userId -> applyPriorities(packages, userId));
+                if (restartUi) restartUi();
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                return OverlayResult.failures(results);
             }
-            if (restartUi) restartUi();
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -303,18 +757,36 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("CopyJob - copying \'" + source + "\' to \'" + destination +
-                    "\'...");
+            try (Metrics.Timer job = Metrics.beginJob("copy");
+                 IoThrottle.Scope io = backgroundIo()) {
+                if (copyPath(source, destination) != FileOperation.RESULT_OK) {
+                    job.fail();
+                }
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
+        }
 
-            File sourceFile = new File(source);
-            if (sourceFile.exists()) {
-                if (sourceFile.isFile()) {
-                    IOUtils.bufferedCopy(source, destination);
-                } else {
-                    IOUtils.copyFolder(source, destination);
+        @Override
+        public void copyFromFd(ParcelFileDescriptor source, String destination) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) {
+                closeQuietly(source);
+                return;
+            }
+
+            try (Metrics.Timer job = Metrics.beginJob("copyFromFd");
+                 IoThrottle.Scope io = backgroundIo()) {
+                log("CopyJob - copying descriptor to \'%s\'...", destination);
+                mThemeIndex.invalidatePath(destination);
+                try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+                     OutputStream out = new FileOutputStream(destination)) {
+                    if (!IOUtils.bufferedCopy(in, out)) {
+                        job.fail();
+                    }
+                } catch (IOException e) {
+                    job.fail();
+                    Log.e(TAG, "", e);
                 }
-            } else {
-                log("CopyJob - \'" + source + "\' does not exist, aborting...");
             }
             informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
@@ -324,21 +796,16 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("MoveJob - moving \'" + source + "\' to \'" + destination +
-                    "\'...");
-
-            File sourceFile = new File(source);
-            if (sourceFile.exists()) {
-                if (sourceFile.isFile()) {
-                    IOUtils.bufferedCopy(source, destination);
-                } else {
-                    IOUtils.copyFolder(source, destination);
+            try (Metrics.Timer job = Metrics.beginJob("move");
+                 IoThrottle.Scope io = backgroundIo()) {
+                IOUtils.MoveResult result = movePath(source, destination);
+                if (result == IOUtils.MoveResult.FAILED) {
+                    job.fail();
                 }
-                IOUtils.deleteRecursive(sourceFile);
-            } else {
-                log("MoveJob - \'" + source + "\' does not exist, aborting...");
+                Bundle extras = new Bundle();
+                extras.putString(MOVE_RESULT_KEY, result.name());
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, extras);
             }
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
@@ -346,9 +813,12 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("MkdirJob - creating \'" + destination + "\'...");
-            IOUtils.createDirIfNotExists(destination);
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            try (Metrics.Timer job = Metrics.beginJob("mkdir")) {
+                log("MkdirJob - creating \'%s\'...", destination);
+                IOUtils.createDirIfNotExists(destination);
+                mThemeIndex.invalidatePath(destination);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
         }
 
         @Override
@@ -356,14 +826,45 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            if (withParent) {
-                delete(directory);
-            } else {
-                for (File child : new File(directory).listFiles()) {
-                    delete(child.getAbsolutePath());
+            try (Metrics.Timer job = Metrics.beginJob("deleteDirectory");
+                 IoThrottle.Scope io = backgroundIo()) {
+                deletePath(directory, withParent);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            }
+        }
+
+        @Override
+        public int[] runFileOperations(List<FileOperation> operations, boolean parallel) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            int[] results = new int[operations != null ? operations.size() : 0];
+            try (Metrics.Timer job = Metrics.beginJob("runFileOperations");
+                 IoThrottle.Scope io = backgroundIo()) {
+                log("FileOperations - running %d operations...", results.length);
+
+                int start = 0;
+                for (int i = 0; i <= results.length; i++) {
+                    FileOperation op = i < results.length ? operations.get(i) : null;
+                    if (i == results.length || (op != null &&
+                            op.type == FileOperation.TYPE_BARRIER)) {
+                        runFileOperations(operations, start, i, parallel, results);
+                        start = i + 1;
+                    }
                 }
+
+                for (int result : results) {
+                    if (result != FileOperation.RESULT_OK) {
+                        job.fail();
+                        break;
+                    }
+                }
+
+                Bundle extras = new Bundle();
+                extras.putIntArray(FILE_OPERATION_RESULTS_KEY, results);
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE, extras);
             }
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+            return results;
         }
 
         @Override
@@ -372,55 +873,118 @@ public class JobService extends Service {
             // Verify caller identity
             if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            log("Applying profile...");
-            boolean mRestartUi = restartUi;
+            try (Metrics.Timer job = Metrics.beginJob("applyProfile");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Resource.FONTS,
+                         Resource.AUDIO, Resource.BOOTANIMATION, Resource.OVERLAYS)) {
+                log("Applying profile...");
+                File profileDir = new File(getProfilesPath() + name + "/theme");
+                File profileFonts = new File(profileDir, "fonts");
+                File profileSounds = new File(profileDir, "audio");
 
-            // Clear system theme folder content
-            File themeDir = new File(IOUtils.SYSTEM_THEME_PATH);
-            for (File f : themeDir.listFiles()) {
-                IOUtils.deleteRecursive(f);
+                applyProfileState(enable, disable, name,
+                        profileFonts.exists() ? ThemeDiff.fromDirectory(profileFonts) : null,
+                        profileSounds.exists() ? ThemeDiff.fromDirectory(profileSounds) : null,
+                        SYSTEM_USER, restartUi);
             }
+        }
 
-            // Process theme folder
-            File profileDir = new File(Environment.getExternalStorageDirectory()
-                    .getAbsolutePath() + "/substratum/profiles/" +
-                    name + "/theme");
+        @Override
+        public int[] applyProfileForUsers(List<String> enable, List<String> disable,
+                                          String name, int[] userIds, boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
 
-            if (profileDir.exists()) {
+            try (Metrics.Timer job = Metrics.beginJob("applyProfileForUsers");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Resource.FONTS,
+                         Resource.AUDIO, Resource.BOOTANIMATION, Resource.OVERLAYS)) {
+                log("Applying profile for %d users...", userIds.length);
+                File profileDir = new File(getProfilesPath() + name + "/theme");
                 File profileFonts = new File(profileDir, "fonts");
-                if (profileFonts.exists()) {
-                    IOUtils.copyFolder(profileFonts, new File(IOUtils.SYSTEM_THEME_FONT_PATH));
-                    refreshFonts();
-                    mRestartUi = true;
-                } else {
-                    clearFonts();
-                }
-
                 File profileSounds = new File(profileDir, "audio");
-                if (profileSounds.exists()) {
-                    IOUtils.copyFolder(profileSounds, new File(IOUtils.SYSTEM_THEME_AUDIO_PATH));
-                    refreshSounds();
-                    mRestartUi = true;
-                } else {
-                    clearSounds(JobService.this);
-                }
+
+                return applyProfileState(enable, disable, name,
+                        profileFonts.exists() ? ThemeDiff.fromDirectory(profileFonts) : null,
+                        profileSounds.exists() ? ThemeDiff.fromDirectory(profileSounds) : null,
+                        userIds, restartUi);
             }
+        }
+
+        @Override
+        public void importProfile(String name, List<String> enable, List<String> disable) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            // Disable all overlays installed
-            for (String overlay : disable) {
-                switchOverlay(overlay, false);
+            try (Metrics.Timer job = Metrics.beginJob("importProfile");
+                 IoThrottle.Scope io = backgroundIo()) {
+                log("ProfileImport - packing profile \'%s\'...", name);
+                File pack = getPackedProfile(name);
+                if (pack != null) {
+                    File profileDir = new File(getProfilesPath() + name + "/theme");
+                    try {
+                        IOUtils.createDirIfNotExists(pack.getParent());
+                        ProfilePack.importFrom(profileDir, enable, disable, pack);
+                    } catch (IOException e) {
+                        job.fail();
+                        Log.e(TAG, "", e);
+                    }
+                }
+                informCompletion(COMMAND_VALUE_JOB_COMPLETE);
             }
+        }
+
+        @Override
+        public void applyPackedProfile(String name, boolean restartUi) {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return;
 
-            // Enable provided overlays
-            for (String overlay : enable) {
-                switchOverlay(overlay, true);
+            try (Metrics.Timer job = Metrics.beginJob("applyPackedProfile");
+                 ResourceLocks.Held held = mResourceLocks.acquire(Resource.FONTS,
+                         Resource.AUDIO, Resource.BOOTANIMATION, Resource.OVERLAYS)) {
+                log("Applying packed profile...");
+                File packFile = getPackedProfile(name);
+                if (packFile == null || !packFile.exists()) {
+                    log("ProfileJob - no packed profile named \'%s\', aborting...", name);
+                    informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                    return;
+                }
+
+                try (ProfilePack pack = ProfilePack.open(packFile)) {
+                    if (!pack.validate()) {
+                        Log.e(TAG, "Packed profile \'" + name +
+                                "\' failed validation, aborting...");
+                        job.fail();
+                        informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                        return;
+                    }
+
+                    applyProfileState(pack.getEnable(), pack.getDisable(), name,
+                            pack.hasSection("fonts") ? pack.source("fonts") : null,
+                            pack.hasSection("audio") ? pack.source("audio") : null,
+                            SYSTEM_USER, restartUi);
+                } catch (IOException e) {
+                    job.fail();
+                    Log.e(TAG, "", e);
+                    informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+                }
             }
+        }
 
-            // Restart SystemUI when needed
-            if (mRestartUi) {
-                restartUi();
+        @Override
+        public ThemeState getThemeState() {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return null;
+
+            try (Metrics.Timer job = Metrics.beginJob("getThemeState")) {
+                return mThemeIndex.snapshot();
             }
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
+        }
+
+        @Override
+        public long getChangeCounter() {
+            // Verify caller identity
+            if (!isCallerAuthorized(Binder.getCallingUid())) return -1;
+
+            return mThemeIndex.getChangeCounter();
         }
 
         @Override
@@ -436,29 +1000,85 @@ public class JobService extends Service {
     };
 
     private static IOverlayManager getOMS() {
-        if (mOMS == null) {
-            mOMS = IOverlayManager.Stub.asInterface(
-                    ServiceManager.getService("overlay"));
+        IOverlayManager oms = mOMS;
+        if (oms == null) {
+            synchronized (JobService.class) {
+                oms = mOMS;
+                if (oms == null) {
+                    oms = mOMS = IOverlayManager.Stub.asInterface(
+                            ServiceManager.getService("overlay"));
+                }
+            }
         }
 
-        return mOMS;
+        return oms;
     }
 
     private static IPackageManager getPM() {
-        if (mPM == null) {
-            mPM = IPackageManager.Stub.asInterface(
-                    ServiceManager.getService("package"));
+        IPackageManager pm = mPM;
+        if (pm == null) {
+            synchronized (JobService.class) {
+                pm = mPM;
+                if (pm == null) {
+                    pm = mPM = IPackageManager.Stub.asInterface(
+                            ServiceManager.getService("package"));
+                }
+            }
         }
 
-        return mPM;
+        return pm;
     }
 
-    public static void log(String msg) {
-        if (!DEBUG) {
-            return;
+    @SuppressWarnings({"unchecked", "ConfusingArgumentToVarargsMethod"})
+    private static Method getKillApplicationProcess() throws Exception {
+        Method kill = sKillApplicationProcess;
+        if (kill == null) {
+            synchronized (JobService.class) {
+                kill = sKillApplicationProcess;
+                if (kill == null) {
+                    Class ActivityManagerNative =
+                            Class.forName("android.app.ActivityManagerNative");
+                    Method getDefault = ActivityManagerNative.getDeclaredMethod("getDefault",
+                            null);
+                    Object amn = getDefault.invoke(null, null);
+                    kill = amn.getClass().getDeclaredMethod("killApplicationProcess",
+                            String.class, int.class);
+                    sActivityManager = amn;
+                    sKillApplicationProcess = kill;
+                }
+            }
         }
-        // More -Wall than -Werror like
-        Log.d(TAG, msg);
+
+        return kill;
+    }
+
+    // More -Wall than -Werror like, overloads as in LogUtils so disabled logging costs nothing
+    private static void log(String msg) {
+        LogUtils.d(TAG, msg);
+    }
+
+    private static void log(String format, Object a) {
+        LogUtils.d(TAG, format, a);
+    }
+
+    private static void log(String format, long a) {
+        LogUtils.d(TAG, format, a);
+    }
+
+    private static void log(String format, Object a, Object b) {
+        LogUtils.d(TAG, format, a, b);
+    }
+
+    private static void log(String format, Object a, long b) {
+        LogUtils.d(TAG, format, a, b);
+    }
+
+    private static void log(String format, long a, Object b) {
+        LogUtils.d(TAG, format, a, b);
+    }
+
+    private static void log(String format, long a, long b) {
+        LogUtils.d(TAG, format, a, b);
     }
 
     private static boolean isDebugBuild() {
@@ -471,15 +1091,57 @@ public class JobService extends Service {
 
     @Override
     public void onCreate() {
-        // Needed here before any checks
-        IOUtils.createThemeDirIfNotExists();
-        mSigOverride = Settings.Secure.getIntForUser(getSubsContext().getContentResolver(),
+        long start = SystemClock.elapsedRealtimeNanos();
+        mContextCache = new PackageContextCache(getApplicationContext());
+        mContextCache.register();
+        mStaging = new StagingArea(getCacheDir());
+        mThemeIndex = new ThemeIndex(this, mThemeLoader);
+
+        // Everything else runs while the client binds, calls wait for it in isCallerAuthorized.
+        // Not on a pool, where it could queue behind the very work that is waiting for it
+        new Thread(this::warmUp, TAG + "-warmup").start();
+        mCreateMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1000000;
+    }
+
+    private void warmUp() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            // Needed here before any checks
+            IOUtils.createThemeDirIfNotExists();
+            mStaging.clear();
+            synchronized (mLock) {
+                mSigOverride = Settings.Secure.getIntForUser(getContentResolver(),
                         Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES, 0,
                         UserHandle.USER_CURRENT) == 1;
+            }
+            getContentResolver().registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES), false, mObserver,
+                    UserHandle.USER_ALL);
+            IntentFilter overlayFilter = new IntentFilter(INTENT_OVERLAY_CHANGED);
+            overlayFilter.addDataScheme("package");
+            registerReceiver(mOverlayReceiver, overlayFilter);
+
+            getOMS();
+            getPM();
+            getSubsContext();
+            getKillApplicationProcess();
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+        } finally {
+            mWarmUpMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1000000;
+            mWarmedUp.countDown();
+            log("Warm up took %dms", mWarmUpMillis);
+        }
+    }
 
-        getContentResolver().registerContentObserver(Settings.Secure.getUriFor(
-                Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES), false, mObserver,
-                UserHandle.USER_ALL);
+    private void awaitWarmUp() {
+        try {
+            if (!mWarmedUp.await(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.e(TAG, "Timed out waiting for warm up");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -489,78 +1151,615 @@ public class JobService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        if (mFirstBindMillis < 0) {
+            mFirstBindMillis = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+            Log.i(TAG, "Cold bind " + mFirstBindMillis + "ms after process start, onCreate took " +
+                    mCreateMillis + "ms");
+        }
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump " + TAG + " from pid="
+                    + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            Metrics.reset();
+            pw.println("Metrics reset.");
+            return;
+        }
+
+        pw.println("Cold start: onCreate=" + mCreateMillis + "ms firstBind=" + mFirstBindMillis +
+                "ms warmUp=" + (mWarmedUp.getCount() == 0 ? mWarmUpMillis + "ms" : "running"));
+        mResourceLocks.dump(pw);
+        pw.println("Durability: " + getDurabilityMode());
+        Metrics.dump(pw);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (mLocaleChanger != null) {
+            mLocaleChanger.onConfigurationApplied(newConfig);
+        }
+    }
+
     @Override
     public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mObserver);
+        mContextCache.unregister();
+        try {
+            unregisterReceiver(mOverlayReceiver);
+        } catch (IllegalArgumentException e) {
+            // Warm up never got to register it
+        }
+        mFileOpExecutor.shutdown();
+        mUserExecutor.shutdown();
+        mPackageExecutor.shutdown();
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor... fds) {
+        if (fds == null) {
+            return;
+        }
+
+        for (ParcelFileDescriptor fd : fds) {
+            try {
+                if (fd != null) {
+                    fd.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    // Background jobs give way to the foreground app and to interactive jobs, user facing
+    // commits keep full priority
+    private IoThrottle.Scope backgroundIo() {
+        return IoThrottle.background(SystemProperties.getLong(IO_RATE_PROPERTY, 0),
+                SystemProperties.getLong(IO_BURST_PROPERTY, DEFAULT_IO_BURST),
+                mResourceLocks::pause);
+    }
+
+    // Theme files are written unsynced and made durable by one barrier at the end of a commit,
+    // before its completion is reported
+    private static Durability.Barrier durableCommit() {
+        return Durability.begin(getDurabilityMode());
+    }
+
+    private static Durability.Mode getDurabilityMode() {
+        return Durability.Mode.parse(SystemProperties.get(DURABILITY_PROPERTY),
+                Durability.Mode.COMMIT);
+    }
+
+    private String publish(StagingArea.Staged staged, Metrics.Timer job) {
+        if (!mStaging.publish(staged)) {
+            log("Preparation of \'%s\' was superseded or canceled", staged.token);
+            job.fail();
+            return null;
+        }
+        return staged.token;
+    }
+
+    private void commitStaged(StagingArea.Staged staged) {
+        switch (staged.resource) {
+            case FONTS:
+                if (staged.restoresDefault) {
+                    clearFonts();
+                } else {
+                    commitFonts(staged.dir, staged.packId, staged.fingerprint);
+                }
+                restartUi();
+                informCompletion(COMMAND_VALUE_FONTS);
+                break;
+            case AUDIO:
+                if (staged.restoresDefault) {
+                    clearSounds(this);
+                } else {
+                    commitSounds(staged.dir, staged.sounds, staged.packId, staged.fingerprint);
+                }
+                restartUi();
+                informCompletion(COMMAND_VALUE_AUDIO);
+                break;
+            case BOOTANIMATION:
+                if (staged.restoresDefault) {
+                    clearBootAnimation();
+                } else {
+                    copyBootAnimation(new File(staged.dir, STAGED_BOOTANIMATION)
+                            .getAbsolutePath(), staged.fingerprint);
+                }
+                informCompletion(COMMAND_VALUE_BOOTANIMATION);
+                break;
+        }
     }
 
     private void informCompletion(String extra) {
+        informCompletion(extra, null);
+    }
+
+    private static Bundle getNoChangeExtras(boolean unchanged) {
+        if (!unchanged) {
+            return null;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(NO_CHANGE_KEY, true);
+        return extras;
+    }
+
+    /**
+     * Whether the given fingerprint is the last one applied to the resource and its files are
+     * still in place, in which case applying it again would not change anything.
+     */
+    private boolean isApplied(Resource resource, String fingerprint) {
+        if (fingerprint == null || !fingerprint.equals(mThemeIndex.getFingerprint(resource))) {
+            return false;
+        }
+
+        switch (resource) {
+            case FONTS:
+                return new File(IOUtils.SYSTEM_THEME_FONT_PATH).isDirectory();
+            case AUDIO:
+                return new File(IOUtils.SYSTEM_THEME_AUDIO_PATH).isDirectory();
+            case BOOTANIMATION:
+                return new File(IOUtils.SYSTEM_THEME_BOOTANIMATION_PATH).isFile();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Identify a boot animation as "size:digest". The size is checked against the applied
+     * fingerprint first, so a boot animation of a different size is never read to find out.
+     *
+     * @return the fingerprint, or null if the file cannot be the applied boot animation.
+     */
+    private String getBootAnimationFingerprint(File file) {
+        String applied = mThemeIndex.getFingerprint(Resource.BOOTANIMATION);
+        String size = file.length() + ":";
+        if (applied == null || !applied.startsWith(size)) {
+            return null;
+        }
+        return size + IOUtils.digest(file);
+    }
+
+    /**
+     * Identify a font or sound pack by theme version, zip name and the digest of the zip.
+     */
+    private String getPackFingerprint(String pid, String folder, String zipFileName) {
+        if (!zipFileName.endsWith(".zip")) {
+            zipFileName = zipFileName + ".zip";
+        }
+
+        Context themeContext = getAppContext(pid);
+        if (themeContext == null) {
+            return null;
+        }
+
+        try (InputStream in = themeContext.getAssets().open(folder + "/" + zipFileName)) {
+            return pid + ":" + mContextCache.getVersionCode(pid) + ":" + zipFileName + ":" +
+                    IOUtils.digest(in);
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+        }
+        return null;
+    }
+
+    private void informCompletion(String extra, Bundle extras) {
         Intent intent = new Intent(INTENT_STATUS_CHANGED);
         intent.putExtra(PRIMARY_COMMAND_KEY, extra);
+        if (extras != null) {
+            intent.putExtras(extras);
+        }
         sendBroadcastAsUser(intent, UserHandle.ALL);
     }
 
     @SuppressWarnings("deprecation")
-    private void install(String path, IPackageInstallObserver2 observer) {
+    private void install(String path, PackageInstallObserver observer) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.PACKAGE);
         try {
-            isWaiting = true;
+            Metrics.addIpc();
             getPM().installPackageAsUser(path, observer,
                     PackageManager.INSTALL_REPLACE_EXISTING,
                     null,
                     UserHandle.USER_SYSTEM);
-            while (isWaiting) {
-                Thread.sleep(500);
+            if (!observer.await()) {
+                timer.fail();
+                Log.e(TAG, "Timed out installing \'" + path + "\'");
+            }
+        } catch (Exception e) {
+            timer.fail();
+            Log.e(TAG, "", e);
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Install a package streamed through a descriptor, which may be a pipe, with a package
+     * installer session instead of a path on shared storage.
+     */
+    private boolean install(ParcelFileDescriptor fd) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.PACKAGE);
+        PackageInstaller installer = getPackageManager().getPackageInstaller();
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.installFlags |= PackageManager.INSTALL_REPLACE_EXISTING;
+        int sessionId = -1;
+
+        try {
+            Metrics.addIpc();
+            sessionId = installer.createSession(params);
+            Metrics.addIpc();
+            try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                Metrics.addIpc();
+                if (!IOUtils.bufferedCopy(new ParcelFileDescriptor.AutoCloseInputStream(fd),
+                        session.openWrite(INSTALL_SESSION_APK, 0, fd.getStatSize()))) {
+                    throw new IOException("Could not stream package into session " + sessionId);
+                }
+
+                SessionCommitReceiver receiver = new SessionCommitReceiver(sessionId);
+                Metrics.addIpc();
+                session.commit(receiver.getIntentSender());
+                if (!receiver.await()) {
+                    timer.fail();
+                    Log.e(TAG, "Timed out installing session " + sessionId);
+                    receiver.cancel();
+                    return false;
+                }
+                if (receiver.needsUserAction()) {
+                    // The session is still waiting on a confirmation that will never come
+                    Metrics.addIpc();
+                    installer.abandonSession(sessionId);
+                }
+                if (!receiver.isSuccess()) {
+                    timer.fail();
+                }
+                return receiver.isSuccess();
             }
         } catch (Exception e) {
+            timer.fail();
             Log.e(TAG, "", e);
+            closeQuietly(fd);
+            if (sessionId != -1) {
+                Metrics.addIpc();
+                installer.abandonSession(sessionId);
+            }
+        } finally {
+            timer.close();
         }
+        return false;
     }
 
     @SuppressWarnings("deprecation")
-    private void uninstall(String packageName, IPackageDeleteObserver observer) {
+    private int uninstall(String packageName) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.PACKAGE);
+        PackageDeleteObserver observer = new PackageDeleteObserver();
+        int result = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
         try {
-            isWaiting = true;
+            Metrics.addIpc();
             getPM().deletePackageAsUser(packageName, observer, 0, UserHandle.USER_SYSTEM);
-            while (isWaiting) {
-                Thread.sleep(500);
+            if (observer.await()) {
+                result = observer.getReturnCode();
+            } else {
+                Log.e(TAG, "Timed out uninstalling \'" + packageName + "\'");
             }
         } catch (Exception e) {
             Log.e(TAG, "", e);
+        } finally {
+            if (result != PackageManager.DELETE_SUCCEEDED) {
+                timer.fail();
+            }
+            timer.close();
         }
+        return result;
+    }
+
+    /**
+     * Uninstall a batch of packages. Overlays among them are disabled in one pass over a single
+     * snapshot of the enabled overlays, the packages are then removed a few at a time and
+     * SystemUI is refreshed once at the end. The overlays are unlocked as soon as the disable
+     * pass is done, so overlay toggles only wait for that pass, while the packages stay locked
+     * until the last removal.
+     *
+     * @return The package manager's delete result for every package, in order.
+     */
+    private int[] removePackages(List<String> packages, boolean restartUi, Metrics.Timer job) {
+        int[] results = new int[packages.size()];
+
+        try (ResourceLocks.Held held = mResourceLocks.acquire(Priority.BULK,
+                Resource.OVERLAYS, Resource.PACKAGES)) {
+            log("Remover - removing %d packages...", packages.size());
+
+            // Without a snapshot every package gets disabled, which is harmless for non overlays
+            Set<String> enabled = getEnabledOverlays(UserHandle.USER_SYSTEM);
+            for (String p : packages) {
+                if (enabled == null || enabled.contains(p)) {
+                    log("Remover - disabling overlay for \'%s\'...", p);
+                    switchOverlay(p, false);
+                }
+            }
+            mThemeIndex.invalidate(Resource.OVERLAYS);
+            held.release(Resource.OVERLAYS);
+
+            List<Future<Integer>> removals = new ArrayList<>();
+            for (String p : packages) {
+                removals.add(mPackageExecutor.submit(Metrics.attach(() -> {
+                    log("Remover - uninstalling \'%s\'...", p);
+                    return uninstall(p);
+                })));
+            }
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = removals.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results[i] = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "", e);
+                    results[i] = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
+                }
+                if (results[i] != PackageManager.DELETE_SUCCEEDED) {
+                    job.fail();
+                }
+            }
+
+            // Removed overlays drop out of the overlay list as well
+            mThemeIndex.invalidate(Resource.OVERLAYS);
+            if (restartUi) restartUi();
+        }
+
+        Bundle extras = new Bundle();
+        extras.putIntArray(UNINSTALL_RESULTS_KEY, results);
+        informCompletion(COMMAND_VALUE_JOB_COMPLETE, extras);
+        return results;
     }
 
     private void switchOverlay(String packageName, boolean enable) {
+        switchOverlay(packageName, enable, UserHandle.USER_SYSTEM);
+    }
+
+    private boolean switchOverlay(String packageName, boolean enable, int userId) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.OVERLAY);
         try {
-            getOMS().setEnabled(packageName, enable, UserHandle.USER_SYSTEM, false);
+            Metrics.addIpc();
+            return getOMS().setEnabled(packageName, enable, userId, false);
         } catch (RemoteException e) {
+            timer.fail();
             Log.e(TAG, "", e);
+        } finally {
+            mThemeIndex.invalidate(Resource.OVERLAYS);
+            timer.close();
         }
+        return false;
     }
 
-    private boolean isOverlayEnabled(String packageName) {
-        boolean enabled = false;
+    private int[] applyProfileState(List<String> enable, List<String> disable, String name,
+                                    ThemeDiff.Source fonts, ThemeDiff.Source audio,
+                                    int[] userIds, boolean restartUi) {
+        boolean mRestartUi = restartUi;
+
+        mThemeIndex.forgetFingerprint(Resource.FONTS);
+        mThemeIndex.forgetFingerprint(Resource.AUDIO);
+        mThemeIndex.forgetFingerprint(Resource.BOOTANIMATION);
+
+        ThemeDiff fontDiff = null;
+        ThemeDiff soundDiff = null;
+        try (Durability.Barrier barrier = durableCommit()) {
+            // Clear everything the profile engine does not manage, e.g. boot animations
+            File[] themeFiles = new File(IOUtils.SYSTEM_THEME_PATH).listFiles();
+            if (themeFiles != null) {
+                for (File f : themeFiles) {
+                    if (!f.getAbsolutePath().equals(IOUtils.SYSTEM_THEME_FONT_PATH) &&
+                            !f.getAbsolutePath().equals(IOUtils.SYSTEM_THEME_AUDIO_PATH)) {
+                        IOUtils.deleteRecursive(f);
+                        Durability.removed(f);
+                    }
+                }
+            }
+            mThemeIndex.setBootAnimation(null);
+
+            // Process theme folder, only touching files that differ from the active theme
+            File themeFonts = new File(IOUtils.SYSTEM_THEME_FONT_PATH);
+            if (fonts != null) {
+                fontDiff = ThemeDiff.compute(fonts, themeFonts);
+                if (!fontDiff.isEmpty()) {
+                    IOUtils.createFontDirIfNotExists();
+                    fontDiff.apply(fonts, themeFonts);
+                    refreshFonts();
+                    mRestartUi = true;
+                }
+                mThemeIndex.setFontPack(PROFILE_PACK_PREFIX + name, null);
+            } else if (themeFonts.exists()) {
+                clearFonts();
+            }
 
-        try {
-            OverlayInfo info = getOMS().getOverlayInfo(packageName, UserHandle.USER_SYSTEM);
-            if (info != null) {
-                enabled = info.isEnabled();
+            File themeSounds = new File(IOUtils.SYSTEM_THEME_AUDIO_PATH);
+            if (audio != null) {
+                soundDiff = ThemeDiff.compute(audio, themeSounds);
+                if (!soundDiff.isEmpty()) {
+                    IOUtils.createAudioDirIfNotExists();
+                    soundDiff.apply(audio, themeSounds);
+                    refreshSounds();
+                    mRestartUi = true;
+                }
+                mThemeIndex.setSoundPack(PROFILE_PACK_PREFIX + name, null);
+            } else if (themeSounds.exists()) {
+                clearSounds(this);
+            }
+        }
+
+        // Fonts and sounds are shared, overlays are switched for every user
+        OverlayResult[] overlays = forEachUser(userIds,
+                userId -> applyOverlayState(enable, disable, userId));
+        int enabled = 0, disabled = 0;
+        for (OverlayResult result : overlays) {
+            enabled += result.enabled;
+            disabled += result.disabled;
+        }
+
+        String changes = "fonts " + (fontDiff != null ? fontDiff : "cleared") +
+                ", audio " + (soundDiff != null ? soundDiff : "cleared") +
+                ", overlays +" + enabled + " -" + disabled;
+        log("Profile \'%s\' applied: %s", name, changes);
+
+        // Restart SystemUI when needed
+        if (mRestartUi) {
+            restartUi();
+        }
+        Bundle extras = new Bundle();
+        extras.putString(PROFILE_CHANGES_KEY, changes);
+        informCompletion(COMMAND_VALUE_JOB_COMPLETE, extras);
+        return OverlayResult.failures(overlays);
+    }
+
+    /**
+     * Bring the overlays of one user in line with the given lists, switching only those whose
+     * state differs in a single snapshot of that user's overlays.
+     */
+    private OverlayResult applyOverlayState(List<String> enable, List<String> disable,
+                                            int userId) {
+        List<String> toDisable = new ArrayList<>();
+        List<String> toEnable = new ArrayList<>();
+        Set<String> enabledNow = getEnabledOverlays(userId);
+        for (String overlay : disable) {
+            if (!enable.contains(overlay) &&
+                    (enabledNow == null || enabledNow.contains(overlay))) {
+                toDisable.add(overlay);
+            }
+        }
+        for (String overlay : enable) {
+            if (enabledNow == null || !enabledNow.contains(overlay)) {
+                toEnable.add(overlay);
+            }
+        }
+
+        OverlayResult result = new OverlayResult();
+        for (String overlay : toDisable) {
+            if (switchOverlay(overlay, false, userId)) {
+                result.disabled++;
             } else {
-                log("OverlayInfo is null.");
+                result.failed++;
+            }
+        }
+        for (String overlay : toEnable) {
+            if (switchOverlay(overlay, true, userId)) {
+                result.enabled++;
+            } else {
+                result.failed++;
+            }
+        }
+        log("Overlays for user %d: %s", userId, result);
+        return result;
+    }
+
+    private OverlayResult applyPriorities(List<String> packages, int userId) {
+        OverlayResult result = new OverlayResult();
+        for (int i = 0; i < packages.size() - 1; i++) {
+            try {
+                Metrics.addIpc();
+                getOMS().setPriority(packages.get(i + 1), packages.get(i), userId);
+            } catch (RemoteException e) {
+                Log.e(TAG, "", e);
+                result.failed++;
+            }
+        }
+        mThemeIndex.invalidate(Resource.OVERLAYS);
+        return result;
+    }
+
+    /**
+     * Run a task for every user concurrently, results are returned in userIds order. The
+     * calling thread takes the first user itself.
+     */
+    private OverlayResult[] forEachUser(int[] userIds, UserTask task) {
+        OverlayResult[] results = new OverlayResult[userIds.length];
+        List<Future<OverlayResult>> futures = new ArrayList<>();
+        for (int i = 1; i < userIds.length; i++) {
+            final int userId = userIds[i];
+            futures.add(mUserExecutor.submit(Metrics.attach(() -> task.run(userId))));
+        }
+
+        if (userIds.length > 0) {
+            results[0] = task.run(userIds[0]);
+        }
+        for (int i = 1; i < userIds.length; i++) {
+            try {
+                results[i] = futures.get(i - 1).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i] = OverlayResult.error();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "", e);
+                results[i] = OverlayResult.error();
+            }
+        }
+        return results;
+    }
+
+    private String getProfilesPath() {
+        return Environment.getExternalStorageDirectory().getAbsolutePath() +
+                "/substratum/profiles/";
+    }
+
+    private static String getPackId(String pid, String fileName) {
+        return pid + "/" + fileName;
+    }
+
+    private File getPackedProfile(String name) {
+        if (name == null || name.contains(File.separator) || name.startsWith(".")) {
+            log("ProfileJob - rejecting invalid profile name \'%s\'", name);
+            return null;
+        }
+
+        return new File(new File(getFilesDir(), "profiles"), name + ProfilePack.EXTENSION);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> getEnabledOverlays(int userId) {
+        try {
+            Metrics.addIpc();
+            Map<String, List<OverlayInfo>> overlays = getOMS().getAllOverlays(userId);
+            Set<String> enabled = new HashSet<>();
+            for (List<OverlayInfo> infos : overlays.values()) {
+                for (OverlayInfo info : infos) {
+                    if (info.isEnabled()) {
+                        enabled.add(info.packageName);
+                    }
+                }
             }
+            return enabled;
         } catch (RemoteException e) {
             Log.e(TAG, "", e);
         }
 
-        return enabled;
+        return null;
     }
 
-    private void copyFonts(String pid, String zipFileName) {
+    /**
+     * @return whether the fonts were committed, i.e. the themed fonts on disk changed.
+     */
+    private boolean copyFonts(String pid, String zipFileName, String fingerprint,
+                              CancellationSignal signal) {
+        if (!stageFonts(getCacheDir(), pid, zipFileName, signal)) {
+            return false;
+        }
+        commitFonts(getCacheDir(), getPackId(pid, zipFileName), fingerprint);
+        return true;
+    }
+
+    private boolean stageFonts(File root, String pid, String zipFileName,
+                               CancellationSignal signal) {
         // Prepare local cache dir for font package assembly
-        log("Copy Fonts - Package ID = " + pid + " filename = " + zipFileName);
+        log("Copy Fonts - Package ID = %s filename = %s", pid, zipFileName);
 
-        File cacheDir = new File(getCacheDir(), "/FontCache/");
+        File cacheDir = new File(root, "/FontCache/");
         if (cacheDir.exists()) {
             IOUtils.deleteRecursive(cacheDir);
         }
@@ -571,7 +1770,13 @@ public class JobService extends Service {
         }
 
         // Copy system fonts into our cache dir
-        IOUtils.copyFolder("/system/fonts", cacheDir.getAbsolutePath());
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.STAGE)) {
+            IOUtils.copyFolder("/system/fonts", cacheDir.getAbsolutePath(), signal);
+        }
+        if (signal.isCanceled()) {
+            log("Copy Fonts - canceled while staging system fonts");
+            return false;
+        }
 
         // Append zip to filename since it is probably removed
         // for list presentation
@@ -581,29 +1786,42 @@ public class JobService extends Service {
 
         // Copy target themed fonts zip to our cache dir
         Context themeContext = getAppContext(pid);
+        if (themeContext == null) {
+            log("Copy Fonts - could not get a context for '%s'", pid);
+            return false;
+        }
         AssetManager am = themeContext.getAssets();
-        try {
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.FETCH)) {
             InputStream inputStream = am.open("fonts/" + zipFileName);
-            OutputStream outputStream = new FileOutputStream(getCacheDir()
-                    .getAbsolutePath() + "/FontCache/" + zipFileName);
-            IOUtils.bufferedCopy(inputStream, outputStream);
+            OutputStream outputStream = new FileOutputStream(new File(cacheDir, zipFileName));
+            if (!IOUtils.bufferedCopy(inputStream, outputStream)) {
+                timer.fail();
+                return false;
+            }
         } catch (Exception e) {
             Log.e(TAG, "", e);
+            return false;
         }
 
         // Unzip new fonts and delete zip file, overwriting any system fonts
-        File fontZip = new File(getCacheDir(), "/FontCache/" + zipFileName);
-        IOUtils.unzip(fontZip.getAbsolutePath(), cacheDir.getAbsolutePath());
+        File fontZip = new File(cacheDir, zipFileName);
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.EXTRACT)) {
+            IOUtils.unzip(fontZip.getAbsolutePath(), cacheDir.getAbsolutePath(), signal);
+        }
 
         boolean deleted = fontZip.delete();
         if (!deleted) {
             log("Could not delete ZIP file...");
         }
+        if (signal.isCanceled()) {
+            log("Copy Fonts - canceled while extracting");
+            return false;
+        }
 
         // Check if theme zip included a fonts.xml. If not, Substratum
         // is kind enough to provide one for us in it's assets
         try {
-            File testConfig = new File(getCacheDir(), "/FontCache/" + "fonts.xml");
+            File testConfig = new File(cacheDir, "fonts.xml");
             if (!testConfig.exists()) {
                 Context subContext = getSubsContext();
                 AssetManager subsAm = subContext.getAssets();
@@ -615,17 +1833,39 @@ public class JobService extends Service {
             Log.e(TAG, "", e);
         }
 
+        // Last chance to bail out, the commit below always runs to completion
+        if (signal.isCanceled()) {
+            log("Copy Fonts - canceled before commit");
+            return false;
+        }
+        return true;
+    }
+
+    private void commitFonts(File root, String packId, String fingerprint) {
+        File cacheDir = new File(root, "/FontCache/");
+
         // Prepare system theme fonts folder and copy new fonts folder from our cache
-        IOUtils.deleteThemedFonts();
-        IOUtils.createFontDirIfNotExists();
-        IOUtils.copyFolder(cacheDir.getAbsolutePath(), IOUtils.SYSTEM_THEME_FONT_PATH);
+        boolean copied;
+        mThemeIndex.forgetFingerprint(Resource.FONTS);
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.COMMIT);
+             Durability.Barrier barrier = durableCommit()) {
+            IOUtils.deleteThemedFonts();
+            IOUtils.createFontDirIfNotExists();
+            copied = IOUtils.copyFolder(cacheDir.getAbsolutePath(),
+                    IOUtils.SYSTEM_THEME_FONT_PATH);
+            copied &= barrier.sync();
+        }
+        // A partial or unsynced copy must not short-circuit the next apply of the same pack
+        mThemeIndex.setFontPack(packId, copied ? fingerprint : null);
 
         // Let system know it's time for a font change
         refreshFonts();
     }
 
     private void clearFonts() {
+        mThemeIndex.forgetFingerprint(Resource.FONTS);
         IOUtils.deleteThemedFonts();
+        mThemeIndex.setFontPack(null, null);
         refreshFonts();
     }
 
@@ -634,9 +1874,12 @@ public class JobService extends Service {
         File themeFonts = new File(IOUtils.SYSTEM_THEME_FONT_PATH);
         if (themeFonts.exists()) {
             // Set permissions
-            IOUtils.setPermissionsRecursive(themeFonts,
-                    FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IRWXO,
-                    FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH | FileUtils.S_IXOTH);
+            try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.CHMOD)) {
+                IOUtils.setPermissionsRecursive(themeFonts,
+                        FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IRWXO,
+                        FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH |
+                                FileUtils.S_IXOTH);
+            }
         }
 
         // Let system know it's time for a font change
@@ -648,84 +1891,227 @@ public class JobService extends Service {
                 Settings.System.FONT_SCALE, (fontSize + 0.0000001f), UserHandle.USER_CURRENT);
     }
 
-    private void applyThemedSounds(String pid, String zipFileName) {
-        // Prepare local cache dir for font package assembly
-        log("CopySounds - Package ID = \'" + pid + "\'");
-        log("CopySounds - File name = \'" + zipFileName + "\'");
+    /**
+     * @return whether the sounds were committed, i.e. the themed sounds on disk changed.
+     */
+    private boolean applyThemedSounds(String pid, String zipFileName, String fingerprint,
+                                      CancellationSignal signal) {
+        Map<String, byte[]> sounds = stageSounds(getCacheDir(), pid, zipFileName, signal);
+        if (sounds == null) {
+            return false;
+        }
+        commitSounds(getCacheDir(), sounds, getPackId(pid, zipFileName), fingerprint);
+        return true;
+    }
+
+    /**
+     * Extract a sound pack for commitSounds. Packs up to SOUNDS_IN_MEMORY_PROPERTY bytes are
+     * extracted into the heap, keeping only the files listed in SOUNDS, so the commit writes
+     * each of them exactly once. Bigger packs are extracted to SoundsCache under root.
+     *
+     * @return the sounds extracted into the heap, empty if the pack was extracted under root,
+     * or null if canceled.
+     */
+    private Map<String, byte[]> stageSounds(File root, String pid, String zipFileName,
+                                            CancellationSignal signal) {
+        log("CopySounds - Package ID = \'%s\'", pid);
+        log("CopySounds - File name = \'%s\'", zipFileName);
+
+        // Append zip to filename since it is probably removed
+        // for list presentation
+        if (!zipFileName.endsWith(".zip")) {
+            zipFileName = zipFileName + ".zip";
+        }
+
+        // Whatever an earlier apply left behind must not leak into this commit
+        File cacheDir = new File(root, "/SoundsCache/");
+        if (cacheDir.exists()) {
+            IOUtils.deleteRecursive(cacheDir);
+        }
+
+        Context themeContext = getAppContext(pid);
+        AssetManager am = themeContext.getAssets();
+        Map<String, byte[]> sounds = unzipSounds(am, zipFileName, signal);
+        if (sounds != null) {
+            log("CopySounds - extracted %d sounds in memory", sounds.size());
+        } else {
+            sounds = Collections.emptyMap();
+            extractSounds(am, root, zipFileName, signal);
+        }
+
+        // Decode UI sounds once now rather than on every tick, lock and unlock
+        if (SoundPreparer.isEnabled()) {
+            prepareUiSounds(root, sounds, signal);
+        }
+
+        // Last chance to bail out, the commit below always runs to completion
+        if (signal.isCanceled()) {
+            log("CopySounds - canceled before commit");
+            return null;
+        }
+        return sounds;
+    }
+
+    private Map<String, byte[]> unzipSounds(AssetManager am, String zipFileName,
+                                            CancellationSignal signal) {
+        int maxBytes = SystemProperties.getInt(SOUNDS_IN_MEMORY_PROPERTY,
+                DEFAULT_SOUNDS_IN_MEMORY);
+        if (maxBytes <= 0) {
+            return null;
+        }
 
-        File cacheDir = new File(getCacheDir(), "/SoundsCache/");
-        if (cacheDir.exists()) {
-            IOUtils.deleteRecursive(cacheDir);
+        Set<String> wanted = new HashSet<>();
+        for (Sound sound : SOUNDS) {
+            for (String extension : sound.getExtensions()) {
+                wanted.add(sound.getEntry(extension));
+            }
+        }
+
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.EXTRACT);
+             InputStream inputStream = am.open("audio/" + zipFileName)) {
+            return IOUtils.unzipToMemory(inputStream, wanted, maxBytes, signal);
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
         }
+        return null;
+    }
 
+    private void extractSounds(AssetManager am, File root, String zipFileName,
+                               CancellationSignal signal) {
+        // Prepare local cache dir for font package assembly
+        File cacheDir = new File(root, "/SoundsCache/");
         boolean created = cacheDir.mkdir();
         if (!created) {
             log("Could not create cache directory...");
         }
 
-        // Append zip to filename since it is probably removed
-        // for list presentation
-        if (!zipFileName.endsWith(".zip")) {
-            zipFileName = zipFileName + ".zip";
-        }
-
         // Copy target themed sounds zip to our cache dir
-        Context themeContext = getAppContext(pid);
-        AssetManager am = themeContext.getAssets();
-        try {
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.FETCH)) {
             InputStream inputStream = am.open("audio/" + zipFileName);
-            OutputStream outputStream = new FileOutputStream(getCacheDir()
-                    .getAbsolutePath() + "/SoundsCache/" + zipFileName);
+            OutputStream outputStream = new FileOutputStream(new File(cacheDir, zipFileName));
             IOUtils.bufferedCopy(inputStream, outputStream);
         } catch (Exception e) {
             Log.e(TAG, "", e);
         }
 
         // Unzip new sounds and delete zip file
-        File soundsZip = new File(getCacheDir(), "/SoundsCache/" + zipFileName);
-        IOUtils.unzip(soundsZip.getAbsolutePath(), cacheDir.getAbsolutePath());
+        File soundsZip = new File(cacheDir, zipFileName);
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.EXTRACT)) {
+            IOUtils.unzip(soundsZip.getAbsolutePath(), cacheDir.getAbsolutePath(), signal);
+        }
 
         boolean deleted = soundsZip.delete();
         if (!deleted) {
             log("Could not delete ZIP file...");
         }
+    }
 
+    /**
+     * Install the sounds staged by stageSounds, taken from the heap when extracted there and from
+     * SoundsCache under root otherwise.
+     */
+    private void commitSounds(File root, Map<String, byte[]> sounds, String packId,
+                              String fingerprint) {
         clearSounds(this);
-        IOUtils.createAudioDirIfNotExists();
 
-        for (Sound sound : SOUNDS) {
-            File soundsCache = new File(getCacheDir(), sound.cachePath);
+        boolean copied = true;
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.COMMIT);
+             Durability.Barrier barrier = durableCommit()) {
+            IOUtils.createAudioDirIfNotExists();
+            for (Sound sound : SOUNDS) {
+                for (String extension : sound.getExtensions()) {
+                    byte[] data = sounds.get(sound.getEntry(extension));
+                    File cached = new File(root, sound.cachePath + sound.soundPath + extension);
+                    if (data == null && !cached.exists()) {
+                        continue;
+                    }
 
-            if (!(soundsCache.exists() && soundsCache.isDirectory())) {
-                continue;
+                    IOUtils.createDirIfNotExists(sound.themePath);
+                    File dest = new File(sound.themePath, sound.soundPath + extension);
+                    copied &= data != null ? IOUtils.write(data, dest) :
+                            IOUtils.bufferedCopy(cached, dest);
+                    break;
+                }
             }
+            copied &= barrier.sync();
+        }
+        mThemeIndex.setSoundPack(packId, copied ? fingerprint : null);
+
+        // Let system know it's time for a sound change
+        refreshSounds();
+    }
+
+    private void prepareUiSounds(File root, Map<String, byte[]> sounds,
+                                 CancellationSignal signal) {
+        int sampleRate = getOutputSampleRate();
+
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.PREPARE)) {
+            for (Sound sound : SOUNDS) {
+                if (signal.isCanceled()) {
+                    return;
+                }
+                if (!sound.isUi()) {
+                    continue;
+                }
+
+                if (!sounds.isEmpty()) {
+                    String ogg = sound.getEntry(".ogg");
+                    String mp3 = sound.getEntry(".mp3");
+                    String source = sounds.containsKey(ogg) ? ogg :
+                            sounds.containsKey(mp3) ? mp3 : null;
+                    if (source == null) {
+                        continue;
+                    }
+
+                    byte[] wav = SoundPreparer.prepare(source, sounds.get(source), sampleRate);
+                    if (wav != null) {
+                        // The commit prefers the WAV, the original is dead weight from here on
+                        sounds.put(sound.getEntry(SoundPreparer.EXTENSION), wav);
+                        sounds.remove(source);
+                    } else {
+                        log("CopySounds - keeping original '%s'", source);
+                    }
+                    continue;
+                }
 
-            IOUtils.createDirIfNotExists(sound.themePath);
+                String base = root.getAbsolutePath() + sound.cachePath + sound.soundPath;
+                File ogg = new File(base + ".ogg");
+                File mp3 = new File(base + ".mp3");
+                File source = ogg.exists() ? ogg : mp3.exists() ? mp3 : null;
 
-            File mp3 = new File(getCacheDir(), sound.cachePath + sound.soundPath + ".mp3");
-            File ogg = new File(getCacheDir(), sound.cachePath + sound.soundPath + ".ogg");
-            if (ogg.exists()) {
-                IOUtils.bufferedCopy(ogg,
-                        new File(sound.themePath + File.separator + sound.soundPath + ".ogg"));
-            } else if (mp3.exists()) {
-                IOUtils.bufferedCopy(mp3,
-                        new File(sound.themePath + File.separator + sound.soundPath + ".mp3"));
+                if (source != null && !SoundPreparer.prepare(source,
+                        new File(base + SoundPreparer.EXTENSION), sampleRate)) {
+                    log("CopySounds - keeping original '%s'", source.getName());
+                }
             }
         }
+    }
 
-        // Let system know it's time for a sound change
-        refreshSounds();
+    private int getOutputSampleRate() {
+        AudioManager am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        String rate = am.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        try {
+            return rate != null ? Integer.parseInt(rate) : 48000;
+        } catch (NumberFormatException e) {
+            return 48000;
+        }
     }
 
     private void clearSounds(Context ctx) {
+        mThemeIndex.forgetFingerprint(Resource.AUDIO);
         IOUtils.deleteThemedAudio();
-        SoundUtils.setDefaultAudible(ctx, RingtoneManager.TYPE_ALARM);
-        SoundUtils.setDefaultAudible(ctx, RingtoneManager.TYPE_NOTIFICATION);
-        SoundUtils.setDefaultAudible(ctx, RingtoneManager.TYPE_RINGTONE);
-        SoundUtils.setDefaultUISounds(getContentResolver(), "lock_sound", "Lock.ogg");
-        SoundUtils.setDefaultUISounds(getContentResolver(), "unlock_sound", "Unlock.ogg");
-        SoundUtils.setDefaultUISounds(getContentResolver(), "low_battery_sound",
-                "LowBattery.ogg");
+        mThemeIndex.setSoundPack(null, null);
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.MEDIASTORE)) {
+            MediaStoreBatch batch = new MediaStoreBatch(ctx);
+            SoundUtils.setDefaultAudible(batch, RingtoneManager.TYPE_ALARM);
+            SoundUtils.setDefaultAudible(batch, RingtoneManager.TYPE_NOTIFICATION);
+            SoundUtils.setDefaultAudible(batch, RingtoneManager.TYPE_RINGTONE);
+            batch.commit();
+            SoundUtils.setDefaultUISounds(getContentResolver(), "lock_sound", "Lock.ogg");
+            SoundUtils.setDefaultUISounds(getContentResolver(), "unlock_sound", "Unlock.ogg");
+            SoundUtils.setDefaultUISounds(getContentResolver(), "low_battery_sound",
+                    "LowBattery.ogg");
+        }
     }
 
     private void refreshSounds() {
@@ -736,80 +2122,145 @@ public class JobService extends Service {
         }
 
         // Set permissions
-        IOUtils.setPermissionsRecursive(soundsDir,
-                FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IRWXO,
-                FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH | FileUtils.S_IXOTH);
-
-        int metaDataId = getSubsContext().getResources().getIdentifier(
-                "content_resolver_notification_metadata",
-                "string", SUBSTRATUM_PACKAGE);
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.CHMOD)) {
+            IOUtils.setPermissionsRecursive(soundsDir,
+                    FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IRWXO,
+                    FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH |
+                            FileUtils.S_IXOTH);
+        }
 
-        for (Sound sound : SOUNDS) {
-            File themePath = new File(sound.themePath);
+        String metaData = mContextCache.getString(SUBSTRATUM_PACKAGE,
+                "content_resolver_notification_metadata");
 
-            if (!(themePath.exists() && themePath.isDirectory())) {
-                continue;
-            }
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.MEDIASTORE)) {
+            MediaStoreBatch batch = new MediaStoreBatch(this);
+            for (Sound sound : SOUNDS) {
+                File themePath = new File(sound.themePath);
 
-            File mp3 = new File(themePath, sound.soundPath + ".mp3");
-            File ogg = new File(themePath, sound.soundPath + ".ogg");
+                if (!(themePath.exists() && themePath.isDirectory())) {
+                    continue;
+                }
 
-            if (ogg.exists()) {
-                if (sound.themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH) && sound.type !=
-                        0) {
-                    SoundUtils.setUIAudible(this, ogg, ogg, sound.type, sound.soundName);
-                } else if (sound.themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH)) {
-                    SoundUtils.setUISounds(getContentResolver(), sound.soundName, ogg
-                            .getAbsolutePath());
-                } else {
-                    SoundUtils.setAudible(this, ogg, ogg, sound.type, getSubsContext().getString
-                            (metaDataId));
-                }
-            } else if (mp3.exists()) {
-                if (sound.themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH) && sound.type !=
-                        0) {
-                    SoundUtils.setUIAudible(this, mp3, mp3, sound.type, sound.soundName);
-                } else if (sound.themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH)) {
-                    SoundUtils.setUISounds(getContentResolver(), sound.soundName,
-                            mp3.getAbsolutePath());
-                } else {
-                    SoundUtils.setAudible(this, mp3, mp3, sound.type, getSubsContext().getString
-                            (metaDataId));
+                boolean isUi = sound.isUi();
+                File audible = null;
+                for (String extension : sound.getExtensions()) {
+                    File file = new File(themePath, sound.soundPath + extension);
+                    if (file.exists()) {
+                        audible = file;
+                        break;
+                    }
                 }
-            } else {
-                if (sound.themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH)) {
-                    SoundUtils.setDefaultUISounds(getContentResolver(), sound.soundName, sound
-                            .soundPath + ".ogg");
+
+                if (audible != null) {
+                    if (isUi && sound.type != 0) {
+                        SoundUtils.setUIAudible(batch, audible, sound.type, sound.soundName);
+                    } else if (isUi) {
+                        SoundUtils.setUISounds(getContentResolver(), sound.soundName,
+                                audible.getAbsolutePath());
+                    } else {
+                        SoundUtils.setAudible(batch, audible, sound.type, metaData);
+                    }
                 } else {
-                    SoundUtils.setDefaultAudible(this, sound.type);
+                    if (isUi) {
+                        SoundUtils.setDefaultUISounds(getContentResolver(), sound.soundName,
+                                sound.soundPath + ".ogg");
+                    } else {
+                        SoundUtils.setDefaultAudible(batch, sound.type);
+                    }
                 }
             }
+            batch.commit();
         }
     }
 
-    private void copyBootAnimation(String fileName) {
-
+    private void copyBootAnimation(String fileName, String fingerprint) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.COMMIT);
+        Durability.Barrier barrier = durableCommit();
         try {
             clearBootAnimation();
 
             File source = new File(fileName);
             File dest = new File(IOUtils.SYSTEM_THEME_BOOTANIMATION_PATH);
 
-            IOUtils.bufferedCopy(source, dest);
+            IOUtils.MoveResult result = IOUtils.move(source, dest);
+            log("Boot animation install - %s", result);
+            if (result == IOUtils.MoveResult.FAILED) {
+                timer.fail();
+                return;
+            }
+
+            IOUtils.setPermissions(dest,
+                    FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IROTH);
+            // An unsynced boot animation must not short-circuit the next apply
+            if (barrier.sync()) {
+                // Skipped up front when it could not match, read back from local storage
+                mThemeIndex.setBootAnimation(fingerprint != null ? fingerprint :
+                        dest.length() + ":" + IOUtils.digest(dest));
+            } else {
+                timer.fail();
+            }
+        } catch (Exception e) {
+            timer.fail();
+            Log.e(TAG, "", e);
+        } finally {
+            barrier.close();
+            mThemeIndex.invalidate(Resource.BOOTANIMATION);
+            timer.close();
+        }
+    }
 
-            boolean deleted = source.delete();
-            if (!deleted) {
-                log("Could not delete source file...");
+    private void copyBootAnimation(ParcelFileDescriptor fd) {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.COMMIT);
+        Durability.Barrier barrier = durableCommit();
+        mThemeIndex.forgetFingerprint(Resource.BOOTANIMATION);
+        File dest = new File(IOUtils.SYSTEM_THEME_BOOTANIMATION_PATH);
+        // Written next to the slot so that the swap below is a rename
+        File tmp = new File(dest.getAbsolutePath() + ".tmp");
+        try {
+            boolean copied;
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+                 OutputStream out = new FileOutputStream(tmp)) {
+                copied = IOUtils.bufferedCopy(in, out);
+            }
+            if (!copied || IOUtils.move(tmp, dest) == IOUtils.MoveResult.FAILED) {
+                timer.fail();
+                tmp.delete();
+                return;
             }
 
             IOUtils.setPermissions(dest,
                     FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IROTH);
+            if (!barrier.sync()) {
+                timer.fail();
+            }
         } catch (Exception e) {
+            timer.fail();
             Log.e(TAG, "", e);
+            tmp.delete();
+        } finally {
+            barrier.close();
+            // Nothing is known about what came in through the descriptor
+            mThemeIndex.setBootAnimation(null);
+            timer.close();
+        }
+    }
+
+    private boolean stageBootAnimation(File root, String fileName) {
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.STAGE)) {
+            File source = new File(fileName);
+            if (!source.isFile()) {
+                log("Boot animation \'%s\' does not exist", fileName);
+                return false;
+            }
+
+            IOUtils.MoveResult result = IOUtils.move(source, new File(root, STAGED_BOOTANIMATION));
+            log("Boot animation staging - %s", result);
+            return result != IOUtils.MoveResult.FAILED;
         }
     }
 
     private void clearBootAnimation() {
+        mThemeIndex.forgetFingerprint(Resource.BOOTANIMATION);
         try {
             File f = new File(IOUtils.SYSTEM_THEME_BOOTANIMATION_PATH);
             if (f.exists()) {
@@ -821,17 +2272,14 @@ public class JobService extends Service {
         } catch (Exception e) {
             Log.e(TAG, "", e);
         }
+        mThemeIndex.setBootAnimation(null);
     }
 
-    @SuppressWarnings({"unchecked", "ConfusingArgumentToVarargsMethod"})
     private void restartUi() {
+        Metrics.Timer timer = Metrics.begin(Metrics.Phase.RESTART);
         try {
             ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
-            Class ActivityManagerNative = Class.forName("android.app.ActivityManagerNative");
-            Method getDefault = ActivityManagerNative.getDeclaredMethod("getDefault", null);
-            Object amn = getDefault.invoke(null, null);
-            Method killApplicationProcess = amn.getClass().getDeclaredMethod
-                    ("killApplicationProcess", String.class, int.class);
+            Method killApplicationProcess = getKillApplicationProcess();
 
             stopService(new Intent().setComponent(new ComponentName("com.android.systemui", "com" +
                     ".android.systemui.SystemUIService")));
@@ -839,12 +2287,15 @@ public class JobService extends Service {
 
             for (ActivityManager.RunningAppProcessInfo app : am.getRunningAppProcesses()) {
                 if ("com.android.systemui".equals(app.processName)) {
-                    killApplicationProcess.invoke(amn, app.processName, app.uid);
+                    killApplicationProcess.invoke(sActivityManager, app.processName, app.uid);
                     break;
                 }
             }
         } catch (Exception e) {
+            timer.fail();
             Log.e(TAG, "", e);
+        } finally {
+            timer.close();
         }
     }
 
@@ -853,21 +2304,13 @@ public class JobService extends Service {
     }
 
     private Context getAppContext(String packageName) {
-        Context ctx = null;
-
-        try {
-            ctx = getApplicationContext().createPackageContext(packageName,
-                    Context.CONTEXT_IGNORE_SECURITY);
-        } catch (NameNotFoundException e) {
-            Log.e(TAG, "", e);
-        }
-
-        return ctx;
+        return mContextCache.getContext(packageName);
     }
 
     private boolean doSignaturesMatch(String packageName, Signature signature) {
         if (packageName != null) {
             try {
+                Metrics.addIpc();
                 PackageInfo pi = getPM().getPackageInfo(packageName,
                         PackageManager.GET_SIGNATURES, UserHandle.USER_SYSTEM);
                 if (pi.signatures != null
@@ -882,16 +2325,26 @@ public class JobService extends Service {
         return false;
     }
 
-    @SuppressWarnings("ConstantConditions")
     private boolean isCallerAuthorized(int uid) {
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.AUTHORIZE)) {
+            awaitWarmUp();
+            boolean authorized = checkCallerAuthorized(uid);
+            if (!authorized) {
+                timer.fail();
+            }
+            return authorized;
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private boolean checkCallerAuthorized(int uid) {
         String callingPackage = getPackageManager().getPackagesForUid(uid)[0];
 
         for (String AUTHORIZED_CALLER : AUTHORIZED_CALLERS) {
             if (TextUtils.equals(callingPackage, AUTHORIZED_CALLER)) {
                 for (Signature AUTHORIZED_SIGNATURE : AUTHORIZED_SIGNATURES) {
                     if (doSignaturesMatch(callingPackage, AUTHORIZED_SIGNATURE)) {
-                        log("\'" + callingPackage
-                                + "\' is an authorized calling package...");
+                        log("\'%s\' is an authorized calling package...", callingPackage);
                         return true;
                     }
                 }
@@ -905,13 +2358,13 @@ public class JobService extends Service {
         }
 
         if (mSigOverride) {
-            log("\'" + callingPackage + "\' is not an authorized calling " +
+            log("\'%s\' is not an authorized calling " +
                     "package, but the user has explicitly allowed all calling" +
-                    " packages, validating calling package permissions...");
+                    " packages, validating calling package permissions...", callingPackage);
             return true;
         }
 
-        log("\'" + callingPackage + "\' is not an authorized calling package.");
+        log("\'%s\' is not an authorized calling package.", callingPackage);
         informCaller(false);
         return false;
     }
@@ -923,13 +2376,175 @@ public class JobService extends Service {
     }
 
     private void delete(String mFileOrDirectory) {
-        log("DeleteJob - deleting \'" + mFileOrDirectory + "\'...");
+        log("DeleteJob - deleting \'%s\'...", mFileOrDirectory);
 
         File file = new File(mFileOrDirectory);
         if (file.exists()) {
             IOUtils.deleteRecursive(file);
         } else {
-            log("DeleteJob - \'" + mFileOrDirectory + "\' is already deleted.");
+            log("DeleteJob - \'%s\' is already deleted.", mFileOrDirectory);
+        }
+    }
+
+    private int deletePath(String directory, boolean withParent) {
+        mThemeIndex.invalidatePath(directory);
+        if (withParent) {
+            delete(directory);
+            return FileOperation.RESULT_OK;
+        }
+
+        File[] children = new File(directory).listFiles();
+        if (children == null) {
+            log("DeleteJob - \'%s\' is not a directory.", directory);
+            return FileOperation.RESULT_NOT_FOUND;
+        }
+        for (File child : children) {
+            delete(child.getAbsolutePath());
+        }
+        return FileOperation.RESULT_OK;
+    }
+
+    private int copyPath(String source, String destination) {
+        log("CopyJob - copying \'%s\' to \'%s\'...", source, destination);
+        mThemeIndex.invalidatePath(destination);
+
+        File sourceFile = new File(source);
+        if (!sourceFile.exists()) {
+            log("CopyJob - \'%s\' does not exist, aborting...", source);
+            return FileOperation.RESULT_NOT_FOUND;
+        }
+
+        boolean copied = sourceFile.isFile() ? IOUtils.bufferedCopy(source, destination) :
+                IOUtils.copyFolder(source, destination);
+        return copied ? FileOperation.RESULT_OK : FileOperation.RESULT_FAILED;
+    }
+
+    private IOUtils.MoveResult movePath(String source, String destination) {
+        log("MoveJob - moving \'%s\' to \'%s\'...", source, destination);
+        mThemeIndex.invalidatePath(source);
+        mThemeIndex.invalidatePath(destination);
+
+        File sourceFile = new File(source);
+        if (!sourceFile.exists()) {
+            log("MoveJob - \'%s\' does not exist, aborting...", source);
+            return IOUtils.MoveResult.FAILED;
+        }
+
+        IOUtils.MoveResult result = IOUtils.move(sourceFile, new File(destination));
+        log("MoveJob - %s \'%s\'", result, source);
+        return result;
+    }
+
+    private int runFileOperation(FileOperation op) {
+        IoThrottle.yieldPoint();
+        if (op == null) {
+            return FileOperation.RESULT_UNSUPPORTED;
+        }
+
+        int result;
+        try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.FILE_OP)) {
+            switch (op.type) {
+                case FileOperation.TYPE_COPY:
+                    result = copyPath(op.source, op.destination);
+                    break;
+                case FileOperation.TYPE_MOVE:
+                    if (!new File(op.source).exists()) {
+                        log("MoveJob - \'%s\' does not exist, aborting...", op.source);
+                        result = FileOperation.RESULT_NOT_FOUND;
+                        break;
+                    }
+                    result = movePath(op.source, op.destination) == IOUtils.MoveResult.FAILED ?
+                            FileOperation.RESULT_FAILED : FileOperation.RESULT_OK;
+                    break;
+                case FileOperation.TYPE_MKDIR:
+                    log("MkdirJob - creating \'%s\'...", op.destination);
+                    IOUtils.createDirIfNotExists(op.destination);
+                    mThemeIndex.invalidatePath(op.destination);
+                    result = new File(op.destination).isDirectory() ?
+                            FileOperation.RESULT_OK : FileOperation.RESULT_FAILED;
+                    break;
+                case FileOperation.TYPE_DELETE:
+                    result = deletePath(op.source, op.withParent);
+                    break;
+                case FileOperation.TYPE_BARRIER:
+                    result = FileOperation.RESULT_OK;
+                    break;
+                default:
+                    result = FileOperation.RESULT_UNSUPPORTED;
+                    break;
+            }
+            if (result != FileOperation.RESULT_OK) {
+                timer.fail();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+            result = FileOperation.RESULT_FAILED;
+        }
+        return result;
+    }
+
+    /**
+     * Run operations [from, to) of a batch, which contain no barrier and thus no dependencies.
+     */
+    private void runFileOperations(List<FileOperation> operations, int from, int to,
+                                   boolean parallel, int[] results) {
+        if (!parallel || to - from < 2) {
+            for (int i = from; i < to; i++) {
+                results[i] = runFileOperation(operations.get(i));
+            }
+            return;
+        }
+
+        List<Future<Integer>> futures = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            final FileOperation op = operations.get(i);
+            futures.add(mFileOpExecutor.submit(Metrics.attach(() -> {
+                try (IoThrottle.Scope io = backgroundIo()) {
+                    return runFileOperation(op);
+                }
+            })));
+        }
+
+        for (int i = from; i < to; i++) {
+            try {
+                results[i] = futures.get(i - from).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i] = FileOperation.RESULT_FAILED;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "", e);
+                results[i] = FileOperation.RESULT_FAILED;
+            }
+        }
+    }
+
+    private interface UserTask {
+        OverlayResult run(int userId);
+    }
+
+    private static class OverlayResult {
+        int enabled;
+        int disabled;
+        int failed;
+
+        static OverlayResult error() {
+            OverlayResult result = new OverlayResult();
+            result.failed = -1;
+            return result;
+        }
+
+        // Failed changes per user, -1 when the user could not be processed at all
+        static int[] failures(OverlayResult[] results) {
+            int[] failures = new int[results.length];
+            for (int i = 0; i < results.length; i++) {
+                failures[i] = results[i].failed;
+            }
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return "+" + enabled + " -" + disabled + " failed=" + failed;
         }
     }
 
@@ -954,49 +2569,272 @@ public class JobService extends Service {
             this.soundPath = soundPath;
             this.type = type;
         }
+
+        boolean isUi() {
+            return themePath.equals(IOUtils.SYSTEM_THEME_UI_SOUNDS_PATH);
+        }
+
+        // Extensions to look for, in order of preference
+        String[] getExtensions() {
+            return isUi() ? UI_SOUND_EXTENSIONS : SOUND_EXTENSIONS;
+        }
+
+        // Name of the file within the pack zip, e.g. "ui/Lock.ogg"
+        String getEntry(String extension) {
+            return new File(cachePath).getName() + "/" + soundPath + extension;
+        }
     }
 
     private class PackageInstallObserver extends IPackageInstallObserver2.Stub {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
         public void onUserActionRequired(Intent intent) throws RemoteException {
             log("Installer - user action required callback");
-            isWaiting = false;
+            mDone.countDown();
         }
 
         public void onPackageInstalled(String packageName, int returnCode,
                                        String msg, Bundle extras) {
-            log("Installer - successfully installed \'" + packageName + "\'!");
-            isWaiting = false;
+            log("Installer - successfully installed \'%s\'!", packageName);
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(PACKAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private class SessionCommitReceiver extends BroadcastReceiver {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final String mAction;
+        private final int mSessionId;
+        private volatile boolean mSuccess;
+        private volatile boolean mNeedsUserAction;
+
+        SessionCommitReceiver(int sessionId) {
+            mSessionId = sessionId;
+            mAction = INTENT_INSTALL_COMMITTED + "." + sessionId;
+            // Only our own PendingIntent holds the permission, nobody else can fake a result
+            registerReceiver(this, new IntentFilter(mAction), PERMISSION_INSTALL_RESULT, null);
+        }
+
+        IntentSender getIntentSender() {
+            Intent intent = new Intent(mAction).setPackage(getPackageName());
+            return PendingIntent.getBroadcast(JobService.this, mSessionId, intent,
+                    PendingIntent.FLAG_ONE_SHOT).getIntentSender();
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1) != mSessionId) {
+                Log.e(TAG, "Installer - ignoring result for another session");
+                return;
+            }
+
+            int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS,
+                    PackageInstaller.STATUS_FAILURE);
+            mSuccess = status == PackageInstaller.STATUS_SUCCESS;
+            // Not final, but a background install has nobody to confirm it, so it is rejected
+            mNeedsUserAction = status == PackageInstaller.STATUS_PENDING_USER_ACTION;
+            if (mSuccess) {
+                log("Installer - successfully installed \'%s\'!",
+                        intent.getStringExtra(PackageInstaller.EXTRA_PACKAGE_NAME));
+            } else if (mNeedsUserAction) {
+                Log.e(TAG, "Installer - session " + mSessionId + " asks for user action, " +
+                        "rejecting it");
+            } else {
+                Log.e(TAG, "Installer - session " + mSessionId + " failed: " +
+                        intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE));
+            }
+            cancel();
+            mDone.countDown();
+        }
+
+        boolean isSuccess() {
+            return mSuccess;
+        }
+
+        boolean needsUserAction() {
+            return mNeedsUserAction;
+        }
+
+        void cancel() {
+            try {
+                unregisterReceiver(this);
+            } catch (IllegalArgumentException e) {
+                // Result came in after all
+            }
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(PACKAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
         }
     }
 
     private class PackageDeleteObserver extends IPackageDeleteObserver.Stub {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile int mReturnCode;
+
         public void packageDeleted(String packageName, int returnCode) {
-            log("Remover - successfully removed \'" + packageName + "\'");
-            isWaiting = false;
+            if (returnCode == PackageManager.DELETE_SUCCEEDED) {
+                log("Remover - successfully removed \'%s\'", packageName);
+            } else {
+                Log.e(TAG, "Removing \'" + packageName + "\' failed with " + returnCode);
+            }
+            mReturnCode = returnCode;
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(PACKAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        int getReturnCode() {
+            return mReturnCode;
         }
     }
 
+    /**
+     * Spoofs and restores the locale to force every app to reload its resources. Each step waits
+     * for the signal it depends on rather than for a fixed time: the spoof is sent once the home
+     * app reports foreground activities, and the locale is restored once the configuration
+     * change has been broadcast, delivered to this process and the main thread went idle. The
+     * caller supplied delays are only upper bounds for each wait.
+     * <p>
+     * Shims run one at a time on the main thread. One requested while another is running starts
+     * once that one has restored the locale and reported completion.
+     */
     private class LocaleChanger extends BroadcastReceiver implements Runnable {
+        private static final int DEFAULT_TIMEOUT_MS = 5000;
+
         private boolean mIsRegistered;
         private Context mContext;
         private Handler mHandler;
+        private final Metrics.Timer mJob;
         private Locale mCurrentLocale;
+        private Locale mSpoofedLocale;
         private int mFirstDelay, mSecondDelay;
+        private long mStart;
+        // Written before the observer is registered, read on a binder thread
+        private volatile int mHomeUid = -1;
+        private boolean mHomeWatched;
+        private boolean mSpoofed, mBroadcastSeen, mConfigurationSeen, mRestored;
+        private final Runnable mHomeTimeout = () -> {
+            log("LocaleChanger - home not shown after %dms, continuing", elapsed());
+            spoofLocale();
+        };
+        private final Runnable mTimeout = () -> {
+            log("LocaleChanger - timed out waiting for configuration change");
+            restoreLocale();
+        };
+        private final IProcessObserver mHomeObserver = new IProcessObserver.Stub() {
+            @Override
+            public void onForegroundActivitiesChanged(int pid, int uid, boolean foreground) {
+                if (foreground && uid == mHomeUid) {
+                    mHandler.post(() -> {
+                        log("LocaleChanger - home shown after %dms", elapsed());
+                        spoofLocale();
+                    });
+                }
+            }
+
+            @Override
+            public void onProcessStateChanged(int pid, int uid, int procState) {
+            }
+
+            @Override
+            public void onProcessDied(int pid, int uid) {
+            }
+        };
 
-        public LocaleChanger(Context context, int firstDelay, int secondDelay) {
+        public LocaleChanger(Context context, int firstDelay, int secondDelay,
+                             Metrics.Timer job) {
             mContext = context;
+            mJob = job;
             mHandler = new Handler(Looper.getMainLooper());
-            mFirstDelay = firstDelay;
-            mSecondDelay = secondDelay;
+            mFirstDelay = firstDelay > 0 ? firstDelay : DEFAULT_TIMEOUT_MS;
+            mSecondDelay = secondDelay > 0 ? secondDelay : DEFAULT_TIMEOUT_MS;
+        }
+
+        /**
+         * Run the shim on the main thread, right away or once the running one is done.
+         */
+        void enqueue() {
+            mHandler.post(() -> {
+                if (mLocaleChanger != null) {
+                    log("LocaleChanger - another shim is running, queueing...");
+                    mPendingShims.add(this);
+                } else {
+                    run();
+                }
+            });
         }
 
         @Override
         public void run() {
-            Intent i = new Intent(Intent.ACTION_MAIN);
-            i.addCategory(Intent.CATEGORY_HOME);
+            mLocaleChanger = this;
+            mStart = SystemClock.elapsedRealtime();
+
+            Intent home = new Intent(Intent.ACTION_MAIN);
+            home.addCategory(Intent.CATEGORY_HOME);
+            try {
+                boolean shown = watchHome(home);
+                mContext.startActivity(home);
+                if (shown) {
+                    log("LocaleChanger - home already shown");
+                    spoofLocale();
+                } else {
+                    mHandler.postDelayed(mHomeTimeout, mFirstDelay);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "", e);
+                mJob.fail();
+                restoreLocale();
+            }
+        }
+
+        /**
+         * Start listening for the home app to come to the foreground.
+         *
+         * @return whether it is in the foreground already.
+         */
+        private boolean watchHome(Intent home) throws RemoteException {
+            ResolveInfo info = getPackageManager().resolveActivity(home,
+                    PackageManager.MATCH_DEFAULT_ONLY);
+            if (info == null) {
+                return false;
+            }
+
+            mHomeUid = info.activityInfo.applicationInfo.uid;
+            ActivityManagerNative.getDefault().registerProcessObserver(mHomeObserver);
+            mHomeWatched = true;
+
+            List<ActivityManager.RunningAppProcessInfo> processes =
+                    ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE))
+                            .getRunningAppProcesses();
+            if (processes != null) {
+                for (ActivityManager.RunningAppProcessInfo process : processes) {
+                    if (process.uid == mHomeUid && process.importance ==
+                            ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void unwatchHome() {
+            mHandler.removeCallbacks(mHomeTimeout);
+            if (!mHomeWatched) {
+                return;
+            }
 
-            mContext.startActivity(i);
-            mHandler.postDelayed(this::spoofLocale, mFirstDelay);
+            try {
+                ActivityManagerNative.getDefault().unregisterProcessObserver(mHomeObserver);
+            } catch (RemoteException e) {
+                Log.e(TAG, "", e);
+            }
+            mHomeWatched = false;
         }
 
         private void register() {
@@ -1024,6 +2862,13 @@ public class JobService extends Service {
         private void spoofLocale() {
             Configuration config;
 
+            // Home coming up and the home timeout may both get here
+            if (mSpoofed || mRestored) {
+                return;
+            }
+            mSpoofed = true;
+            unwatchHome();
+
             log("LocaleChanger - spoofing locale for configuration change shim...");
 
             try {
@@ -1032,41 +2877,94 @@ public class JobService extends Service {
                 config = ActivityManagerNative.getDefault().getConfiguration();
                 mCurrentLocale = config.locale;
 
-                Locale toSpoof = Locale.JAPAN;
-                if (mCurrentLocale == Locale.JAPAN) {
-                    toSpoof = Locale.CHINA;
+                mSpoofedLocale = Locale.JAPAN;
+                if (Locale.JAPAN.equals(mCurrentLocale)) {
+                    mSpoofedLocale = Locale.CHINA;
                 }
 
-                config.setLocale(toSpoof);
+                mHandler.postDelayed(mTimeout, mSecondDelay);
+                config.setLocale(mSpoofedLocale);
                 config.userSetLocale = true;
                 ActivityManagerNative.getDefault().updateConfiguration(config);
             } catch (RemoteException e) {
                 Log.e(TAG, "", e);
+                mJob.fail();
+                restoreLocale();
             }
         }
 
         private void restoreLocale() {
+            if (mRestored) {
+                return;
+            }
+            mRestored = true;
+
             Configuration config;
             log("LocaleChanger - restoring original locale for configuration change shim...");
 
             try {
+                unwatchHome();
                 unregister();
+                mHandler.removeCallbacks(mTimeout);
 
-                config = ActivityManagerNative.getDefault().getConfiguration();
-                config.setLocale(mCurrentLocale);
-                config.userSetLocale = true;
+                // Nothing was spoofed when reading the configuration failed
+                if (mCurrentLocale != null) {
+                    config = ActivityManagerNative.getDefault().getConfiguration();
+                    config.setLocale(mCurrentLocale);
+                    config.userSetLocale = true;
 
-                ActivityManagerNative.getDefault().updateConfiguration(config);
+                    ActivityManagerNative.getDefault().updateConfiguration(config);
+                }
             } catch (RemoteException e) {
                 Log.e(TAG, "", e);
-                return;
+                mJob.fail();
+            }
+
+            // Always report back, the client is waiting on it before going on with its queue
+            long elapsed = elapsed();
+            Log.i(TAG, "Configuration shim took " + elapsed + "ms");
+            Bundle extras = new Bundle();
+            extras.putLong(SHIM_ELAPSED_KEY, elapsed);
+            informCompletion(COMMAND_VALUE_JOB_COMPLETE, extras);
+            mJob.close();
+
+            if (mLocaleChanger == this) {
+                mLocaleChanger = null;
+                LocaleChanger next = mPendingShims.poll();
+                if (next != null) {
+                    next.run();
+                }
+            }
+        }
+
+        private long elapsed() {
+            return SystemClock.elapsedRealtime() - mStart;
+        }
+
+        void onConfigurationApplied(Configuration config) {
+            if (mSpoofedLocale != null && mSpoofedLocale.equals(config.getLocales().get(0))) {
+                mConfigurationSeen = true;
+                maybeRestore();
             }
-            informCompletion(COMMAND_VALUE_JOB_COMPLETE);
         }
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            mHandler.postDelayed(this::restoreLocale, mSecondDelay);
+            mBroadcastSeen = true;
+            maybeRestore();
+        }
+
+        private void maybeRestore() {
+            if (!mBroadcastSeen || !mConfigurationSeen || mRestored) {
+                return;
+            }
+
+            log("LocaleChanger - configuration applied after %dms", elapsed());
+            // Let the relaunches and resource reloads queued by the change run first
+            Looper.myQueue().addIdleHandler(() -> {
+                restoreLocale();
+                return false;
+            });
         }
     }
 }
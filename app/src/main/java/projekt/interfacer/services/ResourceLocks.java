@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.services;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.EnumSet;
+import java.util.TreeSet;
+
+/**
+ * Schedules jobs over the system resources the interfacer writes to. Jobs lock exactly the
+ * resources they touch, so unrelated jobs run concurrently on the binder thread pool while
+ * conflicting ones queue up. A job gets all of its resources at once, which keeps jobs that need
+ * several resources from deadlocking each other.
+ * <p>
+ * Every job has a {@link Priority}. Queued jobs are served by priority, then in arrival order,
+ * so an overlay toggle goes ahead of bulk work that is still waiting. Bulk work that is already
+ * running gives way at its yield points: {@link Held#yield()} at package or file boundaries
+ * hands contended resources to a more urgent waiter and takes them back afterwards, and
+ * {@link #pause()} holds background I/O back for as long as interactive jobs are around.
+ */
+class ResourceLocks {
+    // Upper bound of a single pause, bulk work always makes progress
+    private static final long MAX_PAUSE_MILLIS = 500;
+
+    enum Resource {
+        FONTS,
+        AUDIO,
+        BOOTANIMATION,
+        OVERLAYS,
+        PACKAGES
+    }
+
+    enum Priority {
+        INTERACTIVE,
+        NORMAL,
+        BULK
+    }
+
+    private final ThreadLocal<Held> mCurrent = new ThreadLocal<>();
+    private final EnumSet<Resource> mBusy = EnumSet.noneOf(Resource.class);
+    private final TreeSet<Held> mWaiting = new TreeSet<>((a, b) -> a.priority != b.priority ?
+            a.priority.compareTo(b.priority) : Long.compare(a.sequence, b.sequence));
+    private long mSequence;
+    // Interactive jobs queued or running
+    private int mInteractive;
+    private long mYields;
+    private long mPauses;
+    private long mPausedMillis;
+
+    Held acquire(Resource first, Resource... rest) {
+        return acquire(Priority.NORMAL, first, rest);
+    }
+
+    Held acquire(Priority priority, Resource first, Resource... rest) {
+        return acquire(priority, EnumSet.of(first, rest));
+    }
+
+    /**
+     * Register a job that locks no resource, for scheduling purposes only.
+     */
+    Held enter(Priority priority) {
+        return acquire(priority, EnumSet.noneOf(Resource.class));
+    }
+
+    private Held acquire(Priority priority, EnumSet<Resource> resources) {
+        Held held;
+        synchronized (this) {
+            held = new Held(priority, ++mSequence, resources, mCurrent.get());
+            if (priority == Priority.INTERACTIVE) {
+                mInteractive++;
+            }
+            lock(held);
+        }
+        mCurrent.set(held);
+        return held;
+    }
+
+    /**
+     * Hold background I/O of the calling thread back while interactive jobs are queued or
+     * running, for at most {@link #MAX_PAUSE_MILLIS}. Never gives up a resource, so it is safe
+     * to call anywhere. Jobs registered as anything but bulk are not paused, background I/O on
+     * threads without a registered job counts as bulk.
+     */
+    void pause() {
+        Held held = mCurrent.get();
+        if (held != null && held.priority != Priority.BULK) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mInteractive == 0) {
+                return;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            long remaining = MAX_PAUSE_MILLIS;
+            boolean interrupted = false;
+            // Stop early if an interactive job needs what we hold, it would wait for us
+            while (mInteractive > 0 && remaining > 0 &&
+                    (held == null || !isWantedByHigherPriority(held))) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                remaining = MAX_PAUSE_MILLIS - (SystemClock.elapsedRealtime() - start);
+            }
+
+            mPauses++;
+            mPausedMillis += SystemClock.elapsedRealtime() - start;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Scheduler: waiting=" + mWaiting.size() + " interactive=" + mInteractive +
+                " yields=" + mYields + " pauses=" + mPauses + " paused=" + mPausedMillis + "ms");
+    }
+
+    private void lock(Held held) {
+        mWaiting.add(held);
+        // Paused bulk jobs re-check whether they now hold something we need
+        notifyAll();
+        boolean interrupted = false;
+        while (!canRun(held)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mWaiting.remove(held);
+        mBusy.addAll(held.resources);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean canRun(Held held) {
+        for (Resource resource : held.resources) {
+            if (mBusy.contains(resource)) {
+                return false;
+            }
+        }
+        // Nobody queued ahead of us may be overtaken on a resource they are waiting for
+        for (Held ahead : mWaiting.headSet(held)) {
+            if (overlaps(ahead, held)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isWantedByHigherPriority(Held held) {
+        for (Held waiting : mWaiting) {
+            if (waiting.priority.compareTo(held.priority) >= 0) {
+                break;
+            }
+            if (overlaps(waiting, held)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlaps(Held a, Held b) {
+        for (Resource resource : a.resources) {
+            if (b.resources.contains(resource)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    class Held implements AutoCloseable {
+        final Priority priority;
+        private final long sequence;
+        private final EnumSet<Resource> resources;
+        private final Held mPrevious;
+        private boolean mReleased;
+
+        Held(Priority priority, long sequence, EnumSet<Resource> resources, Held previous) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.resources = resources;
+            mPrevious = previous;
+        }
+
+        /**
+         * A point where the job can safely let more urgent jobs go first: resources a higher
+         * priority job is waiting for are handed over and taken back once it is done, keeping
+         * our place ahead of later jobs of our own priority. Bulk jobs then pause as well.
+         */
+        void yield() {
+            synchronized (ResourceLocks.this) {
+                if (isWantedByHigherPriority(this)) {
+                    mYields++;
+                    mBusy.removeAll(resources);
+                    ResourceLocks.this.notifyAll();
+                    lock(this);
+                }
+            }
+            pause();
+        }
+
+        /**
+         * Let go of a resource the job is done with before the job itself is, e.g. once the
+         * overlay half of a batch is through and only packages remain.
+         */
+        void release(Resource resource) {
+            synchronized (ResourceLocks.this) {
+                if (mReleased || !resources.remove(resource)) {
+                    return;
+                }
+                mBusy.remove(resource);
+                ResourceLocks.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (ResourceLocks.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                mBusy.removeAll(resources);
+                if (priority == Priority.INTERACTIVE) {
+                    mInteractive--;
+                }
+                ResourceLocks.this.notifyAll();
+            }
+            mCurrent.set(mPrevious);
+        }
+    }
+}
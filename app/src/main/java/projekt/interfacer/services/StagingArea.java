@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.services;
+
+import android.os.CancellationSignal;
+import android.util.ArrayMap;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import projekt.interfacer.services.ResourceLocks.Resource;
+import projekt.interfacer.utils.IOUtils;
+
+/**
+ * Prepared but not yet committed jobs, keyed by an opaque token handed out to the caller. Every
+ * token owns a private directory under the cache dir that the prepare step assembles into, so
+ * preparing never touches the live theme folders and needs no resource lock. Small sound packs
+ * are held in the heap instead.
+ * <p>
+ * Only the latest preparation per resource is kept: starting a new one cancels an older one
+ * still in progress, and publishing it drops an older one waiting for its commit.
+ */
+class StagingArea {
+    private static final String STAGING_DIR = "staged";
+
+    private final File mRoot;
+    private final Map<String, Staged> mStaged = new ArrayMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private long mSequence;
+
+    StagingArea(File cacheDir) {
+        mRoot = new File(cacheDir, STAGING_DIR);
+    }
+
+    /**
+     * Drop everything left behind by a previous process, tokens do not outlive it.
+     */
+    synchronized void clear() {
+        mStaged.clear();
+        if (mRoot.exists()) {
+            IOUtils.deleteRecursive(mRoot);
+        }
+    }
+
+    synchronized Staged create(Resource resource) {
+        for (Staged staged : mStaged.values()) {
+            if (staged.resource == resource && !staged.ready) {
+                staged.signal.cancel();
+            }
+        }
+
+        byte[] bytes = new byte[8];
+        mRandom.nextBytes(bytes);
+        String token = IOUtils.toHex(bytes);
+
+        Staged staged = new Staged(token, resource, new File(mRoot, token), ++mSequence);
+        staged.dir.mkdirs();
+        mStaged.put(token, staged);
+        return staged;
+    }
+
+    /**
+     * Make a finished preparation available for commit.
+     *
+     * @return false if it was superseded in the meantime and has been dropped.
+     */
+    synchronized boolean publish(Staged staged) {
+        if (staged.signal.isCanceled() || !mStaged.containsKey(staged.token)) {
+            drop(staged);
+            return false;
+        }
+
+        List<Staged> older = new ArrayList<>();
+        for (Staged other : mStaged.values()) {
+            if (other.resource == staged.resource && other.ready &&
+                    other.sequence < staged.sequence) {
+                older.add(other);
+            }
+        }
+        for (Staged other : older) {
+            drop(other);
+        }
+
+        staged.ready = true;
+        return true;
+    }
+
+    /**
+     * Drop a preparation that failed, called by the thread that was preparing it.
+     */
+    synchronized void abandon(Staged staged) {
+        staged.signal.cancel();
+        drop(staged);
+    }
+
+    /**
+     * Hand a published preparation over for commit. The caller deletes it once done.
+     */
+    synchronized Staged take(String token) {
+        Staged staged = token != null ? mStaged.get(token) : null;
+        if (staged == null || !staged.ready) {
+            return null;
+        }
+
+        mStaged.remove(token);
+        return staged;
+    }
+
+    synchronized void discard(String token) {
+        Staged staged = token != null ? mStaged.get(token) : null;
+        if (staged != null) {
+            staged.signal.cancel();
+            if (staged.ready) {
+                drop(staged);
+            }
+        }
+    }
+
+    private void drop(Staged staged) {
+        mStaged.remove(staged.token);
+        staged.delete();
+    }
+
+    static class Staged {
+        final String token;
+        final Resource resource;
+        final File dir;
+        final long sequence;
+        final CancellationSignal signal = new CancellationSignal();
+        // Committing restores the system default instead of installing anything
+        boolean restoresDefault;
+        // Reported by getThemeState once committed
+        String packId;
+        String fingerprint;
+        // Already applied when prepared, nothing was staged
+        boolean unchanged;
+        // Sounds extracted into the heap, empty when they were staged under dir
+        Map<String, byte[]> sounds = Collections.emptyMap();
+        private boolean ready;
+
+        Staged(String token, Resource resource, File dir, long sequence) {
+            this.token = token;
+            this.resource = resource;
+            this.dir = dir;
+            this.sequence = sequence;
+        }
+
+        void delete() {
+            IOUtils.deleteRecursive(dir);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.services;
+
+import android.os.CancellationSignal;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import projekt.interfacer.services.ResourceLocks.Resource;
+
+/**
+ * Lets a newer job supersede older jobs working on the same resource.
+ * <p>
+ * Every job takes a {@link Ticket} for its resource. Taking a ticket cancels the ticket of the
+ * previous job for that resource, then waits on the resource lock. Jobs still waiting find
+ * their ticket canceled once they get their turn and can skip their work, while a running job
+ * notices the cancellation at its next file boundary. Only the last requested job for a
+ * resource runs to completion.
+ * <p>
+ * A ticket that canceled a job still in flight knows so through {@link Ticket#supersedes}, as
+ * that job may have been stopped between writing its files and refreshing the system.
+ */
+class Supersession {
+    private final ResourceLocks mLocks;
+    private final Map<Resource, Ticket> mLatest = new EnumMap<>(Resource.class);
+    private long mGeneration;
+
+    Supersession(ResourceLocks locks) {
+        mLocks = locks;
+    }
+
+    Ticket acquire(Resource resource) {
+        Ticket ticket;
+        synchronized (this) {
+            Ticket previous = mLatest.get(resource);
+            if (previous != null) {
+                previous.signal.cancel();
+            }
+
+            ticket = new Ticket(resource, ++mGeneration);
+            ticket.supersedes = previous != null;
+            mLatest.put(resource, ticket);
+        }
+
+        ticket.held = mLocks.acquire(resource);
+        return ticket;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (mLatest.get(ticket.resource) == ticket) {
+            mLatest.remove(ticket.resource);
+        }
+    }
+
+    class Ticket implements AutoCloseable {
+        final Resource resource;
+        final long generation;
+        final CancellationSignal signal = new CancellationSignal();
+        // Whether taking this ticket canceled an earlier job that had not finished yet
+        boolean supersedes;
+        private ResourceLocks.Held held;
+
+        Ticket(Resource resource, long generation) {
+            this.resource = resource;
+            this.generation = generation;
+        }
+
+        boolean isCanceled() {
+            return signal.isCanceled();
+        }
+
+        @Override
+        public void close() {
+            held.close();
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import projekt.interfacer.services.ResourceLocks.Resource;
+import projekt.interfacer.utils.IOUtils;
+import projekt.substratum.ThemeState;
+
+/**
+ * In memory view of what is currently applied, backing getThemeState and getChangeCounter.
+ * <p>
+ * Every write to a resource invalidates its section and bumps the change counter. Sections are
+ * only reloaded through the {@link Loader} when the state is actually queried, so polling the
+ * counter is free and a query after a change reloads just the sections that changed.
+ * <p>
+ * Pack IDs and the fingerprints of what was last applied to fonts, sounds and the boot
+ * animation cannot be recovered from the files and are kept in preferences across restarts.
+ * Any write that did not record a fingerprint forgets the previous one, so a stale fingerprint
+ * never makes an apply look like a no-op.
+ */
+class ThemeIndex {
+    private static final String PREFERENCES = "theme_state";
+    private static final String FONT_PACK_KEY = "font_pack";
+    private static final String SOUND_PACK_KEY = "sound_pack";
+    private static final String FONT_FINGERPRINT_KEY = "font_fingerprint";
+    private static final String SOUND_FINGERPRINT_KEY = "sound_fingerprint";
+    private static final String BOOTANIMATION_FINGERPRINT_KEY = "bootanimation_fingerprint";
+
+    interface Loader {
+        List<String> loadOverlays();
+
+        String loadFontHash();
+
+        Bundle loadSoundFiles();
+
+        boolean loadBootAnimation();
+    }
+
+    private final Loader mLoader;
+    private final SharedPreferences mPrefs;
+    // Seeded from the wall clock so that it keeps increasing across service restarts
+    private final AtomicLong mCounter = new AtomicLong(System.currentTimeMillis());
+    // Counter value of the latest write to each resource, and of the load cached for it
+    private final long[] mWritten = new long[Resource.values().length];
+    private final long[] mLoaded = new long[Resource.values().length];
+
+    private List<String> mOverlays = Collections.emptyList();
+    private String mFontHash;
+    private Bundle mSoundFiles = new Bundle();
+    private boolean mBootAnimation;
+
+    ThemeIndex(Context context, Loader loader) {
+        mLoader = loader;
+        mPrefs = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        long now = mCounter.get();
+        for (int i = 0; i < mWritten.length; i++) {
+            mWritten[i] = now;
+            mLoaded[i] = now - 1;
+        }
+    }
+
+    long getChangeCounter() {
+        return mCounter.get();
+    }
+
+    void invalidate(Resource first, Resource... rest) {
+        long counter = mCounter.incrementAndGet();
+        synchronized (mWritten) {
+            mWritten[first.ordinal()] = counter;
+            for (Resource resource : rest) {
+                mWritten[resource.ordinal()] = counter;
+            }
+        }
+    }
+
+    /**
+     * Invalidate whatever a generic file operation on the given path may have touched.
+     */
+    void invalidatePath(String path) {
+        if (path == null) {
+            return;
+        }
+
+        String themePath = IOUtils.SYSTEM_THEME_PATH + File.separator;
+        String absolute = new File(path).getAbsolutePath() + File.separator;
+        if (absolute.startsWith(themePath) || themePath.startsWith(absolute)) {
+            mPrefs.edit()
+                    .remove(FONT_FINGERPRINT_KEY)
+                    .remove(SOUND_FINGERPRINT_KEY)
+                    .remove(BOOTANIMATION_FINGERPRINT_KEY)
+                    .commit();
+            invalidate(Resource.FONTS, Resource.AUDIO, Resource.BOOTANIMATION);
+        }
+    }
+
+    void setFontPack(String packId, String fingerprint) {
+        mPrefs.edit()
+                .putString(FONT_PACK_KEY, packId)
+                .putString(FONT_FINGERPRINT_KEY, fingerprint)
+                .apply();
+        invalidate(Resource.FONTS);
+    }
+
+    void setSoundPack(String packId, String fingerprint) {
+        mPrefs.edit()
+                .putString(SOUND_PACK_KEY, packId)
+                .putString(SOUND_FINGERPRINT_KEY, fingerprint)
+                .apply();
+        invalidate(Resource.AUDIO);
+    }
+
+    void setBootAnimation(String fingerprint) {
+        mPrefs.edit().putString(BOOTANIMATION_FINGERPRINT_KEY, fingerprint).apply();
+        invalidate(Resource.BOOTANIMATION);
+    }
+
+    /**
+     * Called before writing to a resource, synchronously so that a crash halfway through the
+     * write cannot leave the previous fingerprint behind.
+     */
+    void forgetFingerprint(Resource resource) {
+        String key = getFingerprintKey(resource);
+        if (key != null && mPrefs.contains(key)) {
+            mPrefs.edit().remove(key).commit();
+        }
+    }
+
+    String getFingerprint(Resource resource) {
+        String key = getFingerprintKey(resource);
+        return key != null ? mPrefs.getString(key, null) : null;
+    }
+
+    private static String getFingerprintKey(Resource resource) {
+        switch (resource) {
+            case FONTS:
+                return FONT_FINGERPRINT_KEY;
+            case AUDIO:
+                return SOUND_FINGERPRINT_KEY;
+            case BOOTANIMATION:
+                return BOOTANIMATION_FINGERPRINT_KEY;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The current state, reloading the sections written since the last query.
+     */
+    synchronized ThemeState snapshot() {
+        // Read first: a write racing with the reload below bumps it past what we report
+        long counter = mCounter.get();
+
+        if (isStale(Resource.OVERLAYS)) {
+            long written = written(Resource.OVERLAYS);
+            List<String> overlays = mLoader.loadOverlays();
+            if (overlays != null) {
+                mOverlays = overlays;
+                mLoaded[Resource.OVERLAYS.ordinal()] = written;
+            }
+        }
+        if (isStale(Resource.FONTS)) {
+            long written = written(Resource.FONTS);
+            mFontHash = mLoader.loadFontHash();
+            mLoaded[Resource.FONTS.ordinal()] = written;
+        }
+        if (isStale(Resource.AUDIO)) {
+            long written = written(Resource.AUDIO);
+            mSoundFiles = mLoader.loadSoundFiles();
+            mLoaded[Resource.AUDIO.ordinal()] = written;
+        }
+        if (isStale(Resource.BOOTANIMATION)) {
+            long written = written(Resource.BOOTANIMATION);
+            mBootAnimation = mLoader.loadBootAnimation();
+            mLoaded[Resource.BOOTANIMATION.ordinal()] = written;
+        }
+
+        String fontPack = mFontHash != null ? mPrefs.getString(FONT_PACK_KEY, null) : null;
+        String soundPack = !mSoundFiles.isEmpty() ? mPrefs.getString(SOUND_PACK_KEY, null) :
+                null;
+        return new ThemeState(counter, mOverlays, fontPack, mFontHash, soundPack, mSoundFiles,
+                mBootAnimation);
+    }
+
+    private boolean isStale(Resource resource) {
+        return mLoaded[resource.ordinal()] != written(resource);
+    }
+
+    private long written(Resource resource) {
+        synchronized (mWritten) {
+            return mWritten[resource.ordinal()];
+        }
+    }
+}
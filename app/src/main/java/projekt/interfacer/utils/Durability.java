@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Per thread durability barrier for theme commits.
+ * <p>
+ * IOUtils reports every file and directory it finishes writing through {@link #written(File)}.
+ * Inside a {@link Barrier} those writes are left to the page cache and synced in one go when
+ * the barrier is reached: files first, then the directories holding them, deepest first, so a
+ * directory entry never becomes durable before the data it points to. Outside of a barrier
+ * nothing is synced. Time spent syncing is recorded as {@link Metrics.Phase#SYNC}.
+ */
+// Sync timers are scopes that the try blocks never reference
+@SuppressWarnings("try")
+public final class Durability {
+    private static final String TAG = Durability.class.getSimpleName();
+
+    private static final ThreadLocal<Barrier> sCurrent = new ThreadLocal<>();
+
+    public enum Mode {
+        // Leave everything to the kernel's writeback
+        NONE,
+        // One barrier at the end of every commit
+        COMMIT,
+        // Sync every file as soon as it is written, directories at the end of the commit
+        FILE;
+
+        /**
+         * Parse a mode name as found in a system property, e.g. "commit".
+         */
+        public static Mode parse(String value, Mode fallback) {
+            if (value == null || value.isEmpty()) {
+                return fallback;
+            }
+            try {
+                return valueOf(value.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown durability mode \'" + value + "\'", e);
+                return fallback;
+            }
+        }
+    }
+
+    private Durability() {
+    }
+
+    /**
+     * Track writes of the current thread until the returned barrier is closed, which syncs them.
+     */
+    public static Barrier begin(Mode mode) {
+        Barrier barrier = new Barrier(mode, sCurrent.get());
+        sCurrent.set(barrier);
+        return barrier;
+    }
+
+    /**
+     * Record that file has been completely written, or that a directory has been created.
+     */
+    public static void written(File file) {
+        Barrier barrier = sCurrent.get();
+        if (barrier != null) {
+            barrier.add(file);
+        }
+    }
+
+    /**
+     * Record that file has been deleted, so that its directory is synced at the barrier.
+     */
+    public static void removed(File file) {
+        Barrier barrier = sCurrent.get();
+        if (barrier != null && barrier.mMode != Mode.NONE) {
+            barrier.addDir(file.getParentFile());
+        }
+    }
+
+    private static boolean fsync(String path) {
+        try {
+            FileDescriptor fd = Os.open(path, OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+            return true;
+        } catch (ErrnoException e) {
+            // Deleted again later on in the same commit
+            if (e.errno == OsConstants.ENOENT) {
+                return true;
+            }
+            Log.e(TAG, "Could not sync \'" + path + "\'", e);
+        }
+        return false;
+    }
+
+    public static class Barrier implements AutoCloseable {
+        private final Mode mMode;
+        private final Barrier mPrevious;
+        private final Set<String> mFiles = new LinkedHashSet<>();
+        // Reverse order puts children ahead of their parents
+        private final Set<String> mDirs = new TreeSet<>(Collections.reverseOrder());
+        private boolean mFailed;
+
+        Barrier(Mode mode, Barrier previous) {
+            mMode = mode;
+            mPrevious = previous;
+        }
+
+        private void add(File file) {
+            if (mMode == Mode.NONE) {
+                return;
+            }
+
+            if (file.isDirectory()) {
+                addDir(file);
+            } else if (mMode == Mode.FILE) {
+                try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.SYNC)) {
+                    mFailed |= !fsync(file.getAbsolutePath());
+                }
+            } else {
+                mFiles.add(file.getAbsolutePath());
+            }
+            addDir(file.getParentFile());
+        }
+
+        private void addDir(File dir) {
+            if (dir != null) {
+                mDirs.add(dir.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Sync everything written since the barrier began, or since the last sync.
+         *
+         * @return false if anything written under this barrier could not be synced.
+         */
+        public boolean sync() {
+            if (mFiles.isEmpty() && mDirs.isEmpty()) {
+                return !mFailed;
+            }
+
+            try (Metrics.Timer timer = Metrics.begin(Metrics.Phase.SYNC)) {
+                for (String file : mFiles) {
+                    mFailed |= !fsync(file);
+                }
+                for (String dir : mDirs) {
+                    mFailed |= !fsync(dir);
+                }
+                if (mFailed) {
+                    timer.fail();
+                }
+            }
+            mFiles.clear();
+            mDirs.clear();
+            return !mFailed;
+        }
+
+        @Override
+        public void close() {
+            sync();
+            sCurrent.set(mPrevious);
+        }
+    }
+}
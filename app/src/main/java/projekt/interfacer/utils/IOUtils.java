@@ -18,17 +18,28 @@
 
 package projekt.interfacer.utils;
 
+import android.os.CancellationSignal;
 import android.os.FileUtils;
+import android.os.SELinux;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -50,6 +61,12 @@ public class IOUtils {
             + "bootanimation.zip";
     private static final String TAG = IOUtils.class.getSimpleName();
 
+    public enum MoveResult {
+        RENAMED,
+        COPIED,
+        FAILED
+    }
+
     private static boolean dirExists(String dirPath) {
         final File dir = new File(dirPath);
 
@@ -65,6 +82,7 @@ public class IOUtils {
         if (dir.mkdir()) {
             setPermissions(dir, FileUtils.S_IRWXU | FileUtils.S_IRWXG |
                     FileUtils.S_IROTH | FileUtils.S_IXOTH);
+            Durability.written(dir);
         }
     }
 
@@ -96,42 +114,103 @@ public class IOUtils {
         }
     }
 
-    public static void copyFolder(File source, File dest) {
+    public static boolean copyFolder(File source, File dest) {
+        return copyFolder(source, dest, null);
+    }
+
+    public static boolean copyFolder(File source, File dest, CancellationSignal signal) {
         if (!dest.exists()) {
             boolean created = dest.mkdirs();
             if (!created) {
                 Log.e(TAG, "Could not create destination folder...");
+            } else {
+                Durability.written(dest);
             }
         }
 
         File[] files = source.listFiles();
+        if (files == null) {
+            return false;
+        }
+
+        boolean result = true;
         for (File file : files) {
+            IoThrottle.yieldPoint();
+            if (isCanceled(signal)) {
+                return false;
+            }
+
             try {
                 File newFile = new File(dest.getAbsolutePath() + File.separator +
                         file.getName());
                 if (file.isFile()) {
-                    bufferedCopy(file, newFile);
+                    result &= bufferedCopy(file, newFile);
                 } else {
-                    copyFolder(file, newFile);
+                    result &= copyFolder(file, newFile, signal);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "", e);
+                result = false;
             }
         }
+        return result;
+    }
+
+    public static boolean copyFolder(String source, String dest) {
+        return copyFolder(new File(source), new File(dest));
     }
 
-    public static void copyFolder(String source, String dest) {
-        copyFolder(new File(source), new File(dest));
+    public static boolean copyFolder(String source, String dest, CancellationSignal signal) {
+        return copyFolder(new File(source), new File(dest), signal);
+    }
+
+    /**
+     * Move a file or folder. Within one filesystem this is a single rename, whatever the size of
+     * the tree; across filesystems, or when merging into an existing folder, the source is
+     * copied and only deleted once the copy succeeded.
+     */
+    public static MoveResult move(File source, File dest) {
+        try {
+            Os.rename(source.getAbsolutePath(), dest.getAbsolutePath());
+
+            // Renamed files keep the label of their old location
+            if (dest.isDirectory()) {
+                SELinux.restoreconRecursive(dest);
+            } else {
+                SELinux.restorecon(dest);
+            }
+            Durability.written(dest);
+            Metrics.addFiles(1);
+            return MoveResult.RENAMED;
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EXDEV) {
+                Log.w(TAG, "Could not rename \'" + source + "\', copying instead", e);
+            }
+        }
+
+        boolean copied = source.isDirectory() ? copyFolder(source, dest) :
+                bufferedCopy(source, dest);
+        if (!copied) {
+            return MoveResult.FAILED;
+        }
+
+        deleteRecursive(source);
+        return MoveResult.COPIED;
     }
 
     public static void unzip(String source, String destination) {
+        unzip(source, destination, null);
+    }
+
+    public static void unzip(String source, String destination, CancellationSignal signal) {
         try (ZipInputStream inputStream = new ZipInputStream(
                 new BufferedInputStream(new FileInputStream(source)))) {
             ZipEntry zipEntry;
             int count;
             byte[] buffer = new byte[8192];
 
-            while ((zipEntry = inputStream.getNextEntry()) != null) {
+            while ((zipEntry = inputStream.getNextEntry()) != null && !isCanceled(signal)) {
+                IoThrottle.yieldPoint();
                 File file = new File(destination, zipEntry.getName());
                 File dir = zipEntry.isDirectory() ? file : file.getParentFile();
 
@@ -147,50 +226,160 @@ public class IOUtils {
                 try (FileOutputStream outputStream = new FileOutputStream(file)) {
                     while ((count = inputStream.read(buffer)) != -1) {
                         outputStream.write(buffer, 0, count);
+                        Metrics.addBytes(count);
+                        IoThrottle.consume(count);
                     }
                 }
+                Metrics.addFiles(1);
             }
         } catch (Exception e) {
             Log.e(TAG, "", e);
         }
     }
 
-    public static void bufferedCopy(String source, String dest) {
+    /**
+     * Extract the entries named in wanted straight into the heap, for packs small enough that
+     * writing every entry out only to copy a few of them again costs more than it saves.
+     *
+     * @return entry name to contents of the wanted entries present, or null if the zip or the
+     * wanted entries exceed maxBytes or the zip could not be read, and it has to be extracted
+     * to disk instead.
+     */
+    public static Map<String, byte[]> unzipToMemory(InputStream source, Set<String> wanted,
+                                                    int maxBytes, CancellationSignal signal) {
         try {
-            bufferedCopy(new FileInputStream(source), new FileOutputStream(dest));
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = source.read(buffer)) != -1) {
+                zip.write(buffer, 0, count);
+                IoThrottle.consume(count);
+                if (zip.size() > maxBytes) {
+                    return null;
+                }
+            }
+
+            Map<String, byte[]> entries = new HashMap<>();
+            long total = 0;
+            try (ZipInputStream inputStream = new ZipInputStream(
+                    new ByteArrayInputStream(zip.toByteArray()))) {
+                ZipEntry zipEntry;
+
+                while ((zipEntry = inputStream.getNextEntry()) != null && !isCanceled(signal)) {
+                    if (zipEntry.isDirectory() || !wanted.contains(zipEntry.getName())) {
+                        continue;
+                    }
+
+                    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        entry.write(buffer, 0, count);
+                        // Guards against entries that inflate far beyond the zip itself
+                        if ((total += count) > maxBytes) {
+                            return null;
+                        }
+                    }
+                    entries.put(zipEntry.getName(), entry.toByteArray());
+                }
+            }
+            return entries;
         } catch (Exception e) {
             Log.e(TAG, "", e);
         }
+        return null;
     }
 
-    public static void bufferedCopy(File source, File dest) {
-        try {
-            bufferedCopy(new FileInputStream(source), new FileOutputStream(dest));
+    /**
+     * Write data to dest in one go.
+     */
+    public static boolean write(byte[] data, File dest) {
+        try (OutputStream out = new FileOutputStream(dest)) {
+            out.write(data);
+            Metrics.addBytes(data.length);
+            Metrics.addFiles(1);
         } catch (Exception e) {
             Log.e(TAG, "", e);
+            return false;
         }
+        Durability.written(dest);
+        return true;
     }
 
-    public static void bufferedCopy(InputStream source, OutputStream dest) {
-        try {
-            BufferedInputStream in = new BufferedInputStream(source);
-            BufferedOutputStream out = new BufferedOutputStream(dest);
+    public static boolean bufferedCopy(String source, String dest) {
+        return bufferedCopy(new File(source), new File(dest));
+    }
+
+    public static boolean bufferedCopy(File source, File dest) {
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new FileOutputStream(dest)) {
+            if (bufferedCopy(in, out)) {
+                Durability.written(dest);
+                return true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+        }
+        return false;
+    }
+
+    /**
+     * Copy source to dest. Both streams are closed when done, whether the copy succeeded or not.
+     */
+    public static boolean bufferedCopy(InputStream source, OutputStream dest) {
+        try (BufferedInputStream in = new BufferedInputStream(source);
+             BufferedOutputStream out = new BufferedOutputStream(dest)) {
             byte[] buff = new byte[32 * 1024];
             int len;
 
             // Let's bulletproof this a bit
             while ((len = in.read(buff)) != -1) {
                 out.write(buff, 0, len);
+                Metrics.addBytes(len);
+                IoThrottle.consume(len);
             }
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        Metrics.addFiles(1);
+        return true;
+    }
+
+    private static boolean isCanceled(CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
 
-            in.close();
-            out.close();
+    public static String digest(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return digest(in);
         } catch (Exception e) {
             Log.e(TAG, "", e);
         }
+        return null;
+    }
+
+    public static String digest(InputStream source) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] buff = new byte[32 * 1024];
+        int len;
+
+        while ((len = source.read(buff)) != -1) {
+            digest.update(buff, 0, len);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
     }
 
     public static void deleteRecursive(File fileOrDirectory) {
+        IoThrottle.yieldPoint();
         if (fileOrDirectory.isDirectory()) {
             for (File child : fileOrDirectory.listFiles()) {
                 deleteRecursive(child);
@@ -198,6 +387,8 @@ public class IOUtils {
         }
 
         boolean deleted = fileOrDirectory.delete();
+        Metrics.addFiles(1);
+        IoThrottle.consume(IoThrottle.METADATA_COST);
         if (!deleted) {
             Log.e(TAG, "Could not delete file or directory - \'" +
                     fileOrDirectory.getName() + "\'");
@@ -206,6 +397,7 @@ public class IOUtils {
 
     public static void setPermissions(File path, int permissions) {
         FileUtils.setPermissions(path, permissions, -1, -1);
+        Metrics.addFiles(1);
     }
 
     public static void setPermissionsRecursive(File dir, int file, int folder) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Per thread I/O throttling for background theme work.
+ * <p>
+ * {@link #background(long, long)} drops the calling thread to background priority, which the
+ * kernel also applies to its block I/O when no explicit I/O class is set, and optionally caps
+ * its throughput with a token bucket: up to burst bytes go through at full speed, after that
+ * the thread is held to the given rate. IOUtils reports every chunk it moves through
+ * {@link #consume(long)}, so throttling applies to everything done inside the scope.
+ * <p>
+ * A scope may also carry a yield point, which IOUtils runs through {@link #yieldPoint()} at
+ * every file boundary so that long copies can step aside for more urgent work.
+ */
+public final class IoThrottle {
+    // Rough cost of a metadata only operation such as an unlink
+    public static final long METADATA_COST = 4 * 1024;
+
+    private static final ThreadLocal<IoThrottle> sCurrent = new ThreadLocal<>();
+    private static final ThreadLocal<Runnable> sYieldPoint = new ThreadLocal<>();
+
+    private final long mRate;
+    private final long mBurst;
+    private double mTokens;
+    private long mLast = SystemClock.elapsedRealtimeNanos();
+
+    private IoThrottle(long rate, long burst) {
+        mRate = rate;
+        mBurst = Math.max(burst, 1);
+        mTokens = mBurst;
+    }
+
+    /**
+     * Run the current thread as background I/O until the returned scope is closed.
+     *
+     * @param bytesPerSecond Throughput cap, 0 for none.
+     * @param burstBytes     Bytes allowed through at full speed before the cap applies.
+     */
+    public static Scope background(long bytesPerSecond, long burstBytes) {
+        return background(bytesPerSecond, burstBytes, null);
+    }
+
+    /**
+     * Same as {@link #background(long, long)}, running yieldPoint at every file boundary.
+     */
+    public static Scope background(long bytesPerSecond, long burstBytes, Runnable yieldPoint) {
+        int tid = Process.myTid();
+        Scope scope = new Scope(tid, Process.getThreadPriority(tid), sCurrent.get(),
+                sYieldPoint.get());
+
+        Process.setThreadPriority(tid, Process.THREAD_PRIORITY_BACKGROUND);
+        sCurrent.set(bytesPerSecond > 0 ? new IoThrottle(bytesPerSecond, burstBytes) : null);
+        sYieldPoint.set(yieldPoint);
+        return scope;
+    }
+
+    public static void yieldPoint() {
+        Runnable yieldPoint = sYieldPoint.get();
+        if (yieldPoint != null) {
+            yieldPoint.run();
+        }
+    }
+
+    public static void consume(long bytes) {
+        IoThrottle throttle = sCurrent.get();
+        if (throttle != null) {
+            throttle.take(bytes);
+        }
+    }
+
+    private void take(long bytes) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        mTokens = Math.min(mBurst, mTokens + (now - mLast) * (double) mRate / 1000000000L);
+        mLast = now;
+        mTokens -= bytes;
+
+        if (mTokens < 0) {
+            long sleepMs = (long) (-mTokens * 1000 / mRate);
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class Scope implements AutoCloseable {
+        private final int mTid;
+        private final int mPriority;
+        private final IoThrottle mPrevious;
+        private final Runnable mPreviousYieldPoint;
+
+        Scope(int tid, int priority, IoThrottle previous, Runnable previousYieldPoint) {
+            mTid = tid;
+            mPriority = priority;
+            mPrevious = previous;
+            mPreviousYieldPoint = previousYieldPoint;
+        }
+
+        @Override
+        public void close() {
+            // Binder threads are pooled, hand them back the way we found them
+            Process.setThreadPriority(mTid, mPriority);
+            sCurrent.set(mPrevious);
+            sYieldPoint.set(mPreviousYieldPoint);
+        }
+    }
+}
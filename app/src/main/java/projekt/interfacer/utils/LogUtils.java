@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Debug logging gated by the "persist.interfacer.debug" property. Messages are format strings
+ * and are only formatted once the property has been checked, so disabled logging costs a
+ * property read and nothing else.
+ * <p>
+ * The fixed arity overloads take integral arguments as long, so calls with up to two arguments
+ * neither allocate an argument array nor box. Callers with more arguments check
+ * {@link #isDebugEnabled()} before calling the varargs version.
+ */
+public final class LogUtils {
+    private static final String DEBUG_PROPERTY = "persist.interfacer.debug";
+
+    private LogUtils() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return SystemProperties.getBoolean(DEBUG_PROPERTY, false);
+    }
+
+    public static void d(String tag, String msg) {
+        if (isDebugEnabled()) {
+            Log.d(tag, msg);
+        }
+    }
+
+    public static void d(String tag, String format, Object a) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a));
+        }
+    }
+
+    public static void d(String tag, String format, long a) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a));
+        }
+    }
+
+    public static void d(String tag, String format, Object a, Object b) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a, b));
+        }
+    }
+
+    public static void d(String tag, String format, Object a, long b) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a, b));
+        }
+    }
+
+    public static void d(String tag, String format, long a, Object b) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a, b));
+        }
+    }
+
+    public static void d(String tag, String format, long a, long b) {
+        if (isDebugEnabled()) {
+            Log.d(tag, String.format(Locale.US, format, a, b));
+        }
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (!isDebugEnabled()) {
+            return;
+        }
+
+        Log.d(tag, args.length == 0 ? format : String.format(Locale.US, format, args));
+    }
+}
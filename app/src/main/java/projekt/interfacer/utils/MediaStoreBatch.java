@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Collects the MediaStore work of a sound apply and runs it in as few provider transactions as
+ * possible: one query resolving the media IDs of every path, and one applyBatch holding all
+ * updates and inserts. The persisted index remembers the ID each path resolved to and the
+ * values last written to that row. A row whose ID still matches what the query returns and
+ * whose values did not change is not written again, so a rebuilt media database never leaves
+ * a stale ID in use.
+ */
+public class MediaStoreBatch {
+    private static final String TAG = MediaStoreBatch.class.getSimpleName();
+    private static final String INDEX_PREFS = "media_index";
+    private static final Uri CONTENT_URI = MediaStore.Audio.Media.INTERNAL_CONTENT_URI;
+
+    private final Context mContext;
+    private final SharedPreferences mIndex;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public MediaStoreBatch(Context context) {
+        mContext = context;
+        mIndex = context.getSharedPreferences(INDEX_PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Register a themed sound and make it the default for the given ringtone type.
+     *
+     * @param file       Themed sound file.
+     * @param lookupPath Path of the media row to reuse, usually the path of the file itself.
+     * @param values     Values to write to the media row.
+     * @param type       RingtoneManager type to point at the row, or 0 for none.
+     */
+    public void setAudible(File file, String lookupPath, ContentValues values, int type) {
+        mEntries.add(new Entry(file, lookupPath, values, type));
+    }
+
+    /**
+     * Point the given ringtone type back at a stock sound, without writing to the provider.
+     */
+    public void setDefaultAudible(String path, int type) {
+        mEntries.add(new Entry(new File(path), path, null, type));
+    }
+
+    public boolean commit() {
+        boolean result = resolve() && write();
+
+        SharedPreferences.Editor editor = mIndex.edit();
+        for (Entry entry : mEntries) {
+            if (entry.id >= 0 && entry.values != null) {
+                editor.putString(entry.lookupPath, entry.id + ":" + signature(entry.values));
+            } else {
+                editor.remove(entry.lookupPath);
+            }
+
+            if (entry.type == 0) {
+                continue;
+            }
+
+            Uri uri;
+            if (entry.id >= 0) {
+                uri = ContentUris.withAppendedId(CONTENT_URI, entry.id);
+            } else if (entry.values == null) {
+                // Stock sounds missing from the provider fall back to the volume URI like before
+                uri = MediaStore.Audio.Media.getContentUriForPath(entry.lookupPath);
+            } else {
+                // Never make the bare volume URI the default for a row we failed to write
+                Log.e(TAG, "No media row for \'" + entry.lookupPath + "\', keeping the default");
+                result = false;
+                continue;
+            }
+            try {
+                RingtoneManager.setActualDefaultRingtoneUri(mContext, entry.type, uri);
+            } catch (Exception e) {
+                Log.e(TAG, "", e);
+                result = false;
+            }
+        }
+        editor.apply();
+
+        return result;
+    }
+
+    private boolean resolve() {
+        Map<String, List<Entry>> pending = new ArrayMap<>();
+        for (Entry entry : mEntries) {
+            List<Entry> entries = pending.get(entry.lookupPath);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                pending.put(entry.lookupPath, entries);
+            }
+            entries.add(entry);
+        }
+
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        StringBuilder selection = new StringBuilder(MediaStore.MediaColumns.DATA + " IN (");
+        for (int i = 0; i < pending.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+
+        Metrics.addIpc();
+        try (Cursor c = mContext.getContentResolver().query(CONTENT_URI,
+                new String[]{
+                        MediaStore.MediaColumns._ID,
+                        MediaStore.MediaColumns.DATA
+                },
+                selection.toString(),
+                pending.keySet().toArray(new String[pending.size()]), null)) {
+            while (c != null && c.moveToNext()) {
+                List<Entry> entries = pending.get(c.getString(1));
+                if (entries == null) {
+                    continue;
+                }
+                for (Entry entry : entries) {
+                    entry.id = c.getLong(0);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+
+        // Only skip the write for rows that are still the ones the index knows about
+        for (Entry entry : mEntries) {
+            if (entry.id >= 0 && entry.values != null) {
+                entry.upToDate = mIndex.getString(entry.lookupPath, "").equals(
+                        entry.id + ":" + signature(entry.values));
+            }
+        }
+        return true;
+    }
+
+    private boolean write() {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        List<Entry> inserted = new ArrayList<>();
+
+        for (Entry entry : mEntries) {
+            if (entry.values == null || entry.upToDate) {
+                continue;
+            }
+
+            if (entry.id >= 0) {
+                ops.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(CONTENT_URI, entry.id))
+                        .withValues(entry.values)
+                        .build());
+            } else {
+                ops.add(ContentProviderOperation.newInsert(CONTENT_URI)
+                        .withValues(entry.values)
+                        .build());
+                inserted.add(entry);
+            }
+        }
+
+        if (ops.isEmpty()) {
+            return true;
+        }
+
+        Metrics.addIpc();
+        try {
+            ContentProviderResult[] results =
+                    mContext.getContentResolver().applyBatch(MediaStore.AUTHORITY, ops);
+            int insert = 0;
+            for (ContentProviderResult result : results) {
+                if (result.uri != null && insert < inserted.size()) {
+                    inserted.get(insert++).id = ContentUris.parseId(result.uri);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+        }
+
+        // Nothing in the batch was applied, don't index or point defaults at any of it
+        for (Entry entry : mEntries) {
+            if (entry.values != null && !entry.upToDate) {
+                entry.id = -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Values in a stable order, so that equal values always give the same string.
+     */
+    private static String signature(ContentValues values) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeSet<>(values.keySet())) {
+            sb.append(key).append('=').append(values.get(key)).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        final File file;
+        final String lookupPath;
+        final ContentValues values;
+        final int type;
+        long id = -1;
+        boolean upToDate;
+
+        Entry(File file, String lookupPath, ContentValues values, int type) {
+            this.file = file;
+            this.lookupPath = lookupPath;
+            this.values = values;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Process wide counters for the work done by the interfacer, broken down by job and by phase.
+ * <p>
+ * Jobs and phases are timed with {@link Timer}s, which nest per thread: bytes, files and IPC
+ * calls recorded while timers are open are attributed to every open phase and job. Every timer
+ * is also a trace section, so jobs and phases show up in systrace and Perfetto when app tracing
+ * is enabled for the interfacer. Everything is printed by {@link #dump(PrintWriter)}.
+ */
+public final class Metrics {
+    // Upper bounds of the latency histogram buckets, in milliseconds
+    private static final long[] BUCKETS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private static final Map<String, Stat> sJobs = new TreeMap<>();
+    private static final Stat[] sPhases = new Stat[Phase.values().length];
+    private static final Stat sTotal = new Stat();
+    private static long sSince = SystemClock.elapsedRealtime();
+
+    private static final ThreadLocal<ArrayDeque<Timer>> sTimers =
+            new ThreadLocal<ArrayDeque<Timer>>() {
+                @Override
+                protected ArrayDeque<Timer> initialValue() {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    static {
+        for (int i = 0; i < sPhases.length; i++) {
+            sPhases[i] = new Stat();
+        }
+    }
+
+    public enum Phase {
+        AUTHORIZE,
+        FETCH,
+        EXTRACT,
+        PREPARE,
+        STAGE,
+        CHMOD,
+        COMMIT,
+        SYNC,
+        MEDIASTORE,
+        RESTART,
+        OVERLAY,
+        PACKAGE,
+        FILE_OP
+    }
+
+    private Metrics() {
+    }
+
+    public static Timer beginJob(String name) {
+        Stat stat;
+        synchronized (sJobs) {
+            stat = sJobs.get(name);
+            if (stat == null) {
+                stat = new Stat();
+                sJobs.put(name, stat);
+            }
+        }
+        return push(new Timer(name, stat, true));
+    }
+
+    public static Timer begin(Phase phase) {
+        return push(new Timer(phase.name(), sPhases[phase.ordinal()], false));
+    }
+
+    /**
+     * Wrap a task handed to a thread pool so that bytes, files and IPC calls it records also
+     * count towards the timers open on the calling thread, e.g. the job that submitted it.
+     */
+    public static <T> Callable<T> attach(Callable<T> task) {
+        final List<Timer> open = new ArrayList<>(sTimers.get());
+        return () -> {
+            ArrayDeque<Timer> timers = sTimers.get();
+            // Innermost timer ends up on top again
+            for (int i = open.size() - 1; i >= 0; i--) {
+                timers.push(open.get(i));
+            }
+            try {
+                return task.call();
+            } finally {
+                timers.removeAll(open);
+            }
+        };
+    }
+
+    public static void addBytes(long bytes) {
+        for (Timer timer : sTimers.get()) {
+            timer.stat.addBytes(bytes);
+        }
+        sTotal.addBytes(bytes);
+    }
+
+    public static void addFiles(int files) {
+        for (Timer timer : sTimers.get()) {
+            timer.stat.addFiles(files);
+        }
+        sTotal.addFiles(files);
+    }
+
+    public static void addIpc() {
+        for (Timer timer : sTimers.get()) {
+            timer.stat.addIpc();
+        }
+        sTotal.addIpc();
+    }
+
+    public static void reset() {
+        synchronized (sJobs) {
+            sJobs.clear();
+        }
+        for (Stat stat : sPhases) {
+            stat.reset();
+        }
+        sTotal.reset();
+        sSince = SystemClock.elapsedRealtime();
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Metrics since " +
+                (SystemClock.elapsedRealtime() - sSince) / 1000 + "s ago:");
+        pw.println("  Total: " + sTotal.summary());
+
+        pw.println("  Jobs:");
+        synchronized (sJobs) {
+            for (Map.Entry<String, Stat> entry : sJobs.entrySet()) {
+                entry.getValue().dump(pw, entry.getKey());
+            }
+        }
+
+        pw.println("  Phases:");
+        for (Phase phase : Phase.values()) {
+            Stat stat = sPhases[phase.ordinal()];
+            if (stat.count() > 0) {
+                stat.dump(pw, phase.name());
+            }
+        }
+    }
+
+    private static Timer push(Timer timer) {
+        sTimers.get().push(timer);
+        return timer;
+    }
+
+    public static class Timer implements AutoCloseable {
+        final String name;
+        final Stat stat;
+        final boolean isJob;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        boolean failed;
+        boolean closed;
+        boolean detached;
+
+        Timer(String name, Stat stat, boolean isJob) {
+            this.name = name;
+            this.stat = stat;
+            this.isJob = isJob;
+            Trace.beginSection(isJob ? "job:" + name : name);
+        }
+
+        public void fail() {
+            failed = true;
+        }
+
+        /**
+         * Hand the timer over to work that completes asynchronously. It stops collecting on
+         * this thread and its trace section ends here, but its time keeps running until the
+         * asynchronous work calls {@link #close()}, from whichever thread.
+         */
+        public void detach() {
+            if (closed || detached) {
+                return;
+            }
+            detached = true;
+            Trace.endSection();
+            sTimers.get().remove(this);
+        }
+
+        public long elapsedMillis() {
+            return (SystemClock.elapsedRealtimeNanos() - start) / 1000000;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!detached) {
+                Trace.endSection();
+                sTimers.get().remove(this);
+            }
+            stat.record(SystemClock.elapsedRealtimeNanos() - start, failed);
+            if (isJob) {
+                sTotal.record(SystemClock.elapsedRealtimeNanos() - start, failed);
+            }
+        }
+    }
+
+    private static class Stat {
+        private long mCount;
+        private long mFailures;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mBytes;
+        private long mFiles;
+        private long mIpc;
+        private final long[] mHistogram = new long[BUCKETS.length + 1];
+
+        synchronized void record(long nanos, boolean failed) {
+            mCount++;
+            if (failed) {
+                mFailures++;
+            }
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            mHistogram[bucket]++;
+        }
+
+        synchronized void addBytes(long bytes) {
+            mBytes += bytes;
+        }
+
+        synchronized void addFiles(int files) {
+            mFiles += files;
+        }
+
+        synchronized void addIpc() {
+            mIpc++;
+        }
+
+        synchronized long count() {
+            return mCount;
+        }
+
+        synchronized void reset() {
+            mCount = mFailures = mTotalNanos = mMaxNanos = mBytes = mFiles = mIpc = 0;
+            for (int i = 0; i < mHistogram.length; i++) {
+                mHistogram[i] = 0;
+            }
+        }
+
+        synchronized String summary() {
+            long avg = mCount > 0 ? mTotalNanos / mCount / 1000000 : 0;
+            return "count=" + mCount + " failed=" + mFailures +
+                    " avg=" + avg + "ms max=" + mMaxNanos / 1000000 + "ms" +
+                    " bytes=" + mBytes + " files=" + mFiles + " ipc=" + mIpc;
+        }
+
+        synchronized void dump(PrintWriter pw, String name) {
+            pw.println("    " + name + ": " + summary());
+            StringBuilder sb = new StringBuilder("      latency:");
+            for (int i = 0; i < mHistogram.length; i++) {
+                if (mHistogram[i] == 0) {
+                    continue;
+                }
+                sb.append(i < BUCKETS.length ? " <" + BUCKETS[i] : " >=" + BUCKETS[i - 1])
+                        .append("ms=").append(mHistogram[i]);
+            }
+            pw.println(sb);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Keeps a small number of package Contexts alive so that repeated asset and resource lookups
+ * against the same theme (or Substratum itself) do not build a new LoadedApk and AssetManager
+ * every time. Entries remember the versionCode they were created for and are dropped as soon
+ * as the package is updated, changed or removed.
+ */
+public class PackageContextCache extends BroadcastReceiver {
+    private static final String TAG = PackageContextCache.class.getSimpleName();
+    private static final int MAX_ENTRIES = 4;
+
+    private final Context mContext;
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+    private boolean mIsRegistered;
+
+    public PackageContextCache(Context context) {
+        mContext = context;
+    }
+
+    public void register() {
+        if (mIsRegistered) {
+            return;
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+
+        mContext.registerReceiver(this, filter);
+        mIsRegistered = true;
+    }
+
+    public void unregister() {
+        if (!mIsRegistered) {
+            return;
+        }
+
+        mContext.unregisterReceiver(this);
+        mIsRegistered = false;
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (data != null) {
+            invalidate(data.getSchemeSpecificPart());
+        }
+    }
+
+    public void invalidate(String packageName) {
+        if (packageName != null && mCache.remove(packageName) != null) {
+            LogUtils.d(TAG, "Dropped cached context for \'%s\'", packageName);
+        }
+    }
+
+    public Context getContext(String packageName) {
+        Entry entry = getEntry(packageName);
+        return entry != null ? entry.context : null;
+    }
+
+    public int getVersionCode(String packageName) {
+        Entry entry = getEntry(packageName);
+        return entry != null ? entry.versionCode : -1;
+    }
+
+    public int getIdentifier(String packageName, String name, String type) {
+        Entry entry = getEntry(packageName);
+        if (entry == null) {
+            return 0;
+        }
+
+        final String key = type + "/" + name;
+        synchronized (entry.identifiers) {
+            Integer id = entry.identifiers.get(key);
+            if (id == null) {
+                id = entry.context.getResources().getIdentifier(name, type, packageName);
+                entry.identifiers.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    public String getString(String packageName, String name) {
+        Entry entry = getEntry(packageName);
+        int id = getIdentifier(packageName, name, "string");
+        if (entry == null || id == 0) {
+            return null;
+        }
+
+        return entry.context.getString(id);
+    }
+
+    private Entry getEntry(String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+
+        Entry entry = mCache.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
+
+        synchronized (this) {
+            entry = mCache.get(packageName);
+            if (entry != null) {
+                return entry;
+            }
+
+            try {
+                PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+                Context ctx = mContext.createPackageContext(packageName,
+                        Context.CONTEXT_IGNORE_SECURITY);
+                entry = new Entry(ctx, info.versionCode);
+                mCache.put(packageName, entry);
+            } catch (NameNotFoundException e) {
+                Log.e(TAG, "", e);
+            }
+        }
+
+        return entry;
+    }
+
+    private static class Entry {
+        final Context context;
+        final int versionCode;
+        final Map<String, Integer> identifiers = new ArrayMap<>();
+
+        Entry(Context context, int versionCode) {
+            this.context = context;
+            this.versionCode = versionCode;
+        }
+    }
+}
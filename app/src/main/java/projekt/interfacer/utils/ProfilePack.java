@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A profile packed into a single file in internal storage.
+ * <p>
+ * Layout: every file of the profile's theme folder stored back to back, followed by an index
+ * (overlay lists plus path, size, SHA-1 digest and offset of every file) and a trailer holding
+ * the index offset, the format version and a magic. The index sits at the end so the pack can
+ * be written in a single pass over the slow external storage; applying only needs one open of
+ * the pack.
+ */
+public class ProfilePack implements Closeable {
+    public static final String EXTENSION = ".pack";
+    private static final String TAG = ProfilePack.class.getSimpleName();
+    private static final int MAGIC = 0x53505246; // SPRF
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    private final RandomAccessFile mFile;
+    private final List<String> mEnable;
+    private final List<String> mDisable;
+    private final TreeMap<String, Entry> mEntries;
+
+    private ProfilePack(RandomAccessFile file, List<String> enable, List<String> disable,
+                        TreeMap<String, Entry> entries) {
+        mFile = file;
+        mEnable = enable;
+        mDisable = disable;
+        mEntries = entries;
+    }
+
+    public static void importFrom(File themeDir, List<String> enable, List<String> disable,
+                                  File dest) throws IOException {
+        File tmp = new File(dest.getAbsolutePath() + ".tmp");
+        TreeMap<String, Entry> entries = new TreeMap<>();
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            long offset = 0;
+            byte[] buff = new byte[32 * 1024];
+
+            for (File file : listFiles(themeDir)) {
+                IoThrottle.yieldPoint();
+                String path = themeDir.toURI().relativize(file.toURI()).getPath();
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                long size = 0;
+                int len;
+
+                try (InputStream in = new FileInputStream(file)) {
+                    while ((len = in.read(buff)) != -1) {
+                        digest.update(buff, 0, len);
+                        out.write(buff, 0, len);
+                        size += len;
+                        IoThrottle.consume(len);
+                    }
+                }
+
+                entries.put(path, new Entry(offset, size, IOUtils.toHex(digest.digest())));
+                offset += size;
+            }
+
+            writeList(out, enable);
+            writeList(out, disable);
+            out.writeInt(entries.size());
+            for (String path : entries.keySet()) {
+                Entry entry = entries.get(path);
+                out.writeUTF(path);
+                out.writeLong(entry.offset);
+                out.writeLong(entry.size);
+                out.writeUTF(entry.digest);
+            }
+            out.writeLong(offset);
+            out.writeInt(VERSION);
+            out.writeInt(MAGIC);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } catch (Exception e) {
+            tmp.delete();
+            throw new IOException(e);
+        }
+
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Could not commit profile pack \'" + dest + "\'");
+        }
+    }
+
+    public static ProfilePack open(File pack) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(pack, "r");
+
+        try {
+            long length = file.length();
+            if (length < TRAILER_SIZE) {
+                throw new IOException("Truncated profile pack");
+            }
+
+            file.seek(length - TRAILER_SIZE);
+            long indexOffset = file.readLong();
+            int version = file.readInt();
+            if (file.readInt() != MAGIC || version != VERSION || indexOffset < 0 ||
+                    indexOffset > length - TRAILER_SIZE) {
+                throw new IOException("Not a profile pack");
+            }
+
+            file.seek(indexOffset);
+            DataInputStream in = new DataInputStream(Channels.newInputStream(file.getChannel()));
+            List<String> enable = readList(in);
+            List<String> disable = readList(in);
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readUTF());
+                if (entry.offset < 0 || entry.size < 0 ||
+                        entry.offset + entry.size > indexOffset) {
+                    throw new IOException("Corrupt index entry for \'" + path + "\'");
+                }
+                entries.put(path, entry);
+            }
+
+            return new ProfilePack(file, enable, disable, entries);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public List<String> getEnable() {
+        return mEnable;
+    }
+
+    public List<String> getDisable() {
+        return mDisable;
+    }
+
+    public boolean hasSection(String section) {
+        String prefix = section + "/";
+        String first = mEntries.ceilingKey(prefix);
+        return first != null && first.startsWith(prefix);
+    }
+
+    /**
+     * Verify every stored file against the digest recorded at import time.
+     */
+    public boolean validate() {
+        try {
+            FileChannel channel = mFile.getChannel();
+            for (String path : mEntries.keySet()) {
+                Entry entry = mEntries.get(path);
+                InputStream in = Channels.newInputStream(
+                        channel.position(entry.offset));
+                String digest = IOUtils.digest(new BoundedInputStream(in, entry.size));
+                if (!TextUtils.equals(digest, entry.digest)) {
+                    Log.e(TAG, "Digest mismatch for \'" + path + "\'");
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+        }
+        return false;
+    }
+
+    public ThemeDiff.Source source(String section) {
+        final String prefix = section + "/";
+        final TreeMap<String, Entry> entries = new TreeMap<>();
+        for (String path : mEntries.subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+            entries.put(path.substring(prefix.length()), mEntries.get(path));
+        }
+
+        return new ThemeDiff.Source() {
+            @Override
+            public Set<String> paths() {
+                return entries.keySet();
+            }
+
+            @Override
+            public long length(String path) {
+                return entries.get(path).size;
+            }
+
+            @Override
+            public String digest(String path) {
+                return entries.get(path).digest;
+            }
+
+            @Override
+            public boolean copy(String path, File dest) {
+                Entry entry = entries.get(path);
+                try (FileOutputStream out = new FileOutputStream(dest)) {
+                    FileChannel channel = mFile.getChannel();
+                    long done = 0;
+                    while (done < entry.size) {
+                        long sent = channel.transferTo(entry.offset + done, entry.size - done,
+                                out.getChannel());
+                        // Nothing left to read, the pack is shorter than its index says
+                        if (sent <= 0) {
+                            throw new IOException("Truncated entry \'" + path + "\' at " + done +
+                                    " of " + entry.size + " bytes");
+                        }
+                        done += sent;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                    return false;
+                }
+                Durability.written(dest);
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return files;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                files.addAll(listFiles(child));
+            } else {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        if (list == null) {
+            out.writeInt(0);
+            return;
+        }
+
+        out.writeInt(list.size());
+        for (String item : list) {
+            out.writeUTF(item);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(in.readUTF());
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static class Entry {
+        final long offset;
+        final long size;
+        final String digest;
+
+        Entry(long offset, long size, String digest) {
+            this.offset = offset;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long size) {
+            mIn = in;
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = mIn.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int count = mIn.read(b, off, (int) Math.min(len, mRemaining));
+            if (count != -1) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+    }
+}
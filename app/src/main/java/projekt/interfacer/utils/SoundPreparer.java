@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes short UI sounds into 16 bit PCM WAV files at the device output sample rate, so the
+ * sound pool can load them without a codec and AudioFlinger can play them on the fast path
+ * without resampling. Anything that is too big, too long or fails to decode is left alone and
+ * the caller keeps the original file.
+ */
+public final class SoundPreparer {
+    private static final String TAG = SoundPreparer.class.getSimpleName();
+    private static final String PREPARE_PROPERTY = "persist.interfacer.prepare_ui_sounds";
+    public static final String EXTENSION = ".wav";
+
+    private static final long MAX_SOURCE_BYTES = 512 * 1024;
+    private static final long MAX_DURATION_US = 3 * 1000 * 1000;
+    private static final int MAX_PCM_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_CHANNELS = 2;
+    private static final long DECODE_TIMEOUT_MS = 5000;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private SoundPreparer() {
+    }
+
+    public static boolean isEnabled() {
+        return SystemProperties.getBoolean(PREPARE_PROPERTY, true);
+    }
+
+    /**
+     * Decode source into a WAV file at dest, resampled to sampleRate.
+     *
+     * @return true when dest was written, false if the original should be used instead.
+     */
+    public static boolean prepare(final File source, File dest, int sampleRate) {
+        if (source.length() > MAX_SOURCE_BYTES) {
+            LogUtils.d(TAG, "Not preparing \'%s\', %d bytes is too big", source,
+                    source.length());
+            return false;
+        }
+
+        byte[] wav = decode(source.getAbsolutePath(),
+                extractor -> extractor.setDataSource(source.getAbsolutePath()), sampleRate);
+        if (wav == null) {
+            return false;
+        }
+
+        try {
+            write(wav, dest);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not prepare \'" + source + "\'", e);
+        }
+        return false;
+    }
+
+    /**
+     * Decode a source held in memory, resampled to sampleRate.
+     *
+     * @param name used for logging only.
+     * @return the contents of the WAV file, or null if the original should be used instead.
+     */
+    public static byte[] prepare(String name, final byte[] source, int sampleRate) {
+        if (source.length > MAX_SOURCE_BYTES) {
+            LogUtils.d(TAG, "Not preparing \'%s\', %d bytes is too big", name, source.length);
+            return null;
+        }
+
+        return decode(name, extractor -> extractor.setDataSource(new ByteArrayDataSource(source)),
+                sampleRate);
+    }
+
+    private static byte[] decode(String source, DataSource dataSource, int sampleRate) {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            dataSource.open(extractor);
+
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat track = extractor.getTrackFormat(i);
+                if (track.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = track;
+                    break;
+                }
+            }
+
+            if (format == null || (format.containsKey(MediaFormat.KEY_DURATION) &&
+                    format.getLong(MediaFormat.KEY_DURATION) > MAX_DURATION_US)) {
+                return null;
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            int rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long deadline = SystemClock.elapsedRealtime() + DECODE_TIMEOUT_MS;
+            boolean inputDone = false;
+            boolean outputDone = false;
+
+            while (!outputDone) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    Log.e(TAG, "Timed out decoding \'" + source + "\'");
+                    return null;
+                }
+
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    channels = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    rate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    if (output.containsKey(MediaFormat.KEY_PCM_ENCODING) &&
+                            output.getInteger(MediaFormat.KEY_PCM_ENCODING) !=
+                                    AudioFormat.ENCODING_PCM_16BIT) {
+                        return null;
+                    }
+                } else if (index >= 0) {
+                    ByteBuffer buffer = codec.getOutputBuffer(index);
+                    byte[] chunk = new byte[info.size];
+                    buffer.position(info.offset);
+                    buffer.get(chunk);
+                    pcm.write(chunk);
+                    codec.releaseOutputBuffer(index, false);
+
+                    if (pcm.size() > MAX_PCM_BYTES) {
+                        return null;
+                    }
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+
+            if (channels < 1 || channels > MAX_CHANNELS || pcm.size() == 0) {
+                return null;
+            }
+
+            short[] samples = toShorts(pcm.toByteArray());
+            if (rate != sampleRate) {
+                samples = resample(samples, channels, rate, sampleRate);
+            }
+            byte[] wav = toWav(samples, channels, sampleRate);
+
+            if (LogUtils.isDebugEnabled()) {
+                LogUtils.d(TAG, "Prepared \'%s\': %d ch, %d Hz -> %d Hz", source, channels,
+                        rate, sampleRate);
+            }
+            return wav;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not prepare \'" + source + "\'", e);
+            return null;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // Never got started
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static short[] toShorts(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.nativeOrder()).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    // Linear interpolation is plenty for clips this short, and keeps the apply quick
+    private static short[] resample(short[] in, int channels, int from, int to) {
+        int frames = in.length / channels;
+        int outFrames = (int) ((long) frames * to / from);
+        short[] out = new short[outFrames * channels];
+
+        for (int frame = 0; frame < outFrames; frame++) {
+            double position = (double) frame * from / to;
+            int left = (int) position;
+            int right = Math.min(left + 1, frames - 1);
+            double fraction = position - left;
+
+            for (int ch = 0; ch < channels; ch++) {
+                double a = in[left * channels + ch];
+                double b = in[right * channels + ch];
+                out[frame * channels + ch] = (short) Math.round(a + (b - a) * fraction);
+            }
+        }
+        return out;
+    }
+
+    private static byte[] toWav(short[] samples, int channels, int sampleRate)
+            throws IOException {
+        int dataSize = samples.length * 2;
+        ByteBuffer wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes("US-ASCII")).putInt(36 + dataSize)
+                .put("WAVE".getBytes("US-ASCII"))
+                .put("fmt ".getBytes("US-ASCII")).putInt(16)
+                .putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2)
+                .putShort((short) (channels * 2)).putShort((short) 16)
+                .put("data".getBytes("US-ASCII")).putInt(dataSize);
+        wav.asShortBuffer().put(samples);
+        return wav.array();
+    }
+
+    private static void write(byte[] wav, File dest) throws IOException {
+        File tmp = new File(dest.getAbsolutePath() + ".tmp");
+
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(wav);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Could not commit \'" + dest + "\'");
+        }
+        Metrics.addBytes(wav.length);
+        Metrics.addFiles(1);
+    }
+
+    private interface DataSource {
+        void open(MediaExtractor extractor) throws IOException;
+    }
+
+    private static class ByteArrayDataSource extends MediaDataSource {
+        private final byte[] mData;
+
+        ByteArrayDataSource(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) {
+            if (position >= mData.length) {
+                return -1;
+            }
+            int count = (int) Math.min(size, mData.length - position);
+            System.arraycopy(mData, (int) position, buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long getSize() {
+            return mData.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
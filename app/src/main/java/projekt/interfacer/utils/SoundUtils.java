@@ -20,15 +20,11 @@ package projekt.interfacer.utils;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
-import android.database.Cursor;
 import android.media.RingtoneManager;
-import android.net.Uri;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.MediaStore;
 import android.provider.Settings;
-import android.util.Log;
 
 import java.io.File;
 import java.util.Arrays;
@@ -42,7 +38,6 @@ public class SoundUtils {
             SYSTEM_MEDIA_PATH + File.separator + "ringtones";
     private static final String SYSTEM_NOTIFICATIONS_PATH =
             SYSTEM_MEDIA_PATH + File.separator + "notifications";
-    private static final String MEDIA_CONTENT_URI = "content://media/internal/audio/media";
 
     private static void updateGlobalSettings(ContentResolver resolver, String uri, String val) {
         Settings.Global.putStringForUser(resolver, uri, val, UserHandle.USER_SYSTEM);
@@ -99,8 +94,7 @@ public class SoundUtils {
         return path;
     }
 
-    public static boolean setAudible(Context context, File ringtone, File ringtoneCache, int type,
-                                     String name) {
+    public static void setAudible(MediaStoreBatch batch, File ringtone, int type, String name) {
         final String path = ringtone.getAbsolutePath();
         final String mimeType = name.endsWith(".ogg") ? "application/ogg" : "application/mp3";
         ContentValues values = new ContentValues();
@@ -108,130 +102,43 @@ public class SoundUtils {
         values.put(MediaStore.MediaColumns.DATA, path);
         values.put(MediaStore.MediaColumns.TITLE, name);
         values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
-        values.put(MediaStore.MediaColumns.SIZE, ringtoneCache.length());
+        values.put(MediaStore.MediaColumns.SIZE, ringtone.length());
         values.put(MediaStore.Audio.Media.IS_RINGTONE, type == RingtoneManager.TYPE_RINGTONE);
         values.put(MediaStore.Audio.Media.IS_NOTIFICATION,
                 type == RingtoneManager.TYPE_NOTIFICATION);
         values.put(MediaStore.Audio.Media.IS_ALARM, type == RingtoneManager.TYPE_ALARM);
         values.put(MediaStore.Audio.Media.IS_MUSIC, false);
 
-        Uri uri = MediaStore.Audio.Media.getContentUriForPath(path);
-        Uri newUri = null;
-        Cursor c = context.getContentResolver().query(uri,
-                new String[]{
-                        MediaStore.MediaColumns._ID
-                },
-                MediaStore.MediaColumns.DATA + "='" + path + "'",
-                null, null);
-
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            String id = String.valueOf(c.getLong(0));
-            c.close();
-
-            newUri = Uri.withAppendedPath(Uri.parse(MEDIA_CONTENT_URI), id);
-            context.getContentResolver().update(uri, values,
-                    MediaStore.MediaColumns._ID + "=" + id, null);
-        }
-
-        if (newUri == null) {
-            newUri = context.getContentResolver().insert(uri, values);
-        }
-
-        try {
-            RingtoneManager.setActualDefaultRingtoneUri(context, type, newUri);
-        } catch (Exception e) {
-            Log.e(TAG, "", e);
-            return false;
-        }
-
-        return true;
+        batch.setAudible(ringtone, path, values, type);
     }
 
-    public static boolean setUIAudible(Context context, File localized_ringtone,
-                                       File ringtone_file, int type, String name) {
-        final String path = ringtone_file.getAbsolutePath();
+    public static void setUIAudible(MediaStoreBatch batch, File ringtone, int type, String name) {
+        final String path = ringtone.getAbsolutePath();
 
+        // UI sounds take over the media entry of the stock sound they replace
         final String path_clone = "/system/media/audio/ui/" + name + ".ogg";
 
         ContentValues values = new ContentValues();
         values.put(MediaStore.MediaColumns.DATA, path);
         values.put(MediaStore.MediaColumns.TITLE, name);
-        values.put(MediaStore.MediaColumns.MIME_TYPE, "application/ogg");
-        values.put(MediaStore.MediaColumns.SIZE, localized_ringtone.length());
+        values.put(MediaStore.MediaColumns.MIME_TYPE,
+                path.endsWith(SoundPreparer.EXTENSION) ? "audio/x-wav" : "application/ogg");
+        values.put(MediaStore.MediaColumns.SIZE, ringtone.length());
         values.put(MediaStore.Audio.Media.IS_RINGTONE, false);
         values.put(MediaStore.Audio.Media.IS_NOTIFICATION, false);
         values.put(MediaStore.Audio.Media.IS_ALARM, false);
         values.put(MediaStore.Audio.Media.IS_MUSIC, true);
 
-        Uri uri = MediaStore.Audio.Media.getContentUriForPath(path);
-        Uri newUri = null;
-        Cursor c = context.getContentResolver().query(uri,
-                new String[]{
-                        MediaStore.MediaColumns._ID
-                },
-                MediaStore.MediaColumns.DATA + "='" + path_clone + "'",
-                null, null);
-
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            String id = String.valueOf(c.getLong(0));
-            c.close();
-
-            Log.e(TAG, id);
-            newUri = Uri.withAppendedPath(Uri.parse(MEDIA_CONTENT_URI), id);
-
-            try {
-                context.getContentResolver().update(uri, values,
-                        MediaStore.MediaColumns._ID + "=" + id, null);
-            } catch (Exception e) {
-                Log.d(TAG, "The content provider does not need to be updated.");
-            }
-        }
-
-        if (newUri == null) {
-            newUri = context.getContentResolver().insert(uri, values);
-        }
-
-        try {
-            RingtoneManager.setActualDefaultRingtoneUri(context, type, newUri);
-        } catch (Exception e) {
-            Log.e(TAG, "", e);
-            return false;
-        }
-
-        return true;
+        batch.setAudible(ringtone, path_clone, values, type);
     }
 
-    public static boolean setDefaultAudible(Context context, int type) {
+    public static boolean setDefaultAudible(MediaStoreBatch batch, int type) {
         final String audiblePath = getDefaultAudiblePath(type);
         if (audiblePath == null) {
             return false;
         }
 
-        Uri uri = MediaStore.Audio.Media.getContentUriForPath(audiblePath);
-        Cursor c = context.getContentResolver().query(uri,
-                new String[]{
-                        MediaStore.MediaColumns._ID
-                },
-                MediaStore.MediaColumns.DATA + "='" + audiblePath + "'",
-                null, null);
-
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            String id = String.valueOf(c.getLong(0));
-            c.close();
-
-            uri = Uri.withAppendedPath(Uri.parse(MEDIA_CONTENT_URI), id);
-        }
-
-        try {
-            RingtoneManager.setActualDefaultRingtoneUri(context, type, uri);
-        } catch (Exception e) {
-            Log.e(TAG, "", e);
-            return false;
-        }
-
+        batch.setDefaultAudible(audiblePath, type);
         return true;
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.utils;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Difference between a set of source files (a profile) and an installed theme folder, keyed by
+ * path relative to the folder root. Files are considered equal when both their size and their
+ * content digest match, so unchanged fonts and sounds are never rewritten.
+ * <p>
+ * The digest of every file hashed or written here is recorded along with its size and mtime, so
+ * a file that still has both is not read again, only a mismatch is hashed.
+ */
+public class ThemeDiff {
+    private static final String TAG = ThemeDiff.class.getSimpleName();
+
+    // Absolute path to what the file was when it was last hashed or written
+    private static final Map<String, Recorded> sRecorded = new HashMap<>();
+
+    public final List<String> added = new ArrayList<>();
+    public final List<String> changed = new ArrayList<>();
+    public final List<String> removed = new ArrayList<>();
+
+    public interface Source {
+        Set<String> paths();
+
+        long length(String path);
+
+        String digest(String path);
+
+        boolean copy(String path, File dest);
+    }
+
+    public static Source fromDirectory(File root) {
+        return new DirectorySource(root);
+    }
+
+    public static ThemeDiff compute(Source source, File target) {
+        ThemeDiff diff = new ThemeDiff();
+        TreeMap<String, File> installed = listFiles(target);
+
+        for (String path : source.paths()) {
+            File current = installed.remove(path);
+            if (current == null) {
+                diff.added.add(path);
+            } else if (current.length() != source.length(path) ||
+                    !TextUtils.equals(digest(current), source.digest(path))) {
+                diff.changed.add(path);
+            }
+        }
+        diff.removed.addAll(installed.keySet());
+
+        return diff;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    public void apply(Source source, File target) {
+        for (String path : removed) {
+            File dest = new File(target, path);
+            IOUtils.deleteRecursive(dest);
+            Durability.removed(dest);
+            forget(dest);
+        }
+
+        List<String> writes = new ArrayList<>(added);
+        writes.addAll(changed);
+        for (String path : writes) {
+            File dest = new File(target, path);
+            File parent = dest.getParentFile();
+            if (!parent.isDirectory()) {
+                if (!parent.mkdirs()) {
+                    Log.e(TAG, "Could not create \'" + parent.getAbsolutePath() + "\'");
+                    continue;
+                }
+                Durability.written(parent);
+            }
+            if (source.copy(path, dest)) {
+                record(dest, source.digest(path));
+            } else {
+                forget(dest);
+            }
+        }
+    }
+
+    /**
+     * Content digest of file, reusing the recorded one while its size and mtime are unchanged.
+     */
+    public static String digest(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        synchronized (sRecorded) {
+            Recorded recorded = sRecorded.get(path);
+            if (recorded != null && recorded.length == length && recorded.modified == modified) {
+                return recorded.digest;
+            }
+        }
+
+        String digest = IOUtils.digest(file);
+        if (digest != null) {
+            synchronized (sRecorded) {
+                sRecorded.put(path, new Recorded(length, modified, digest));
+            }
+        }
+        return digest;
+    }
+
+    private static void record(File file, String digest) {
+        if (digest == null) {
+            forget(file);
+            return;
+        }
+        synchronized (sRecorded) {
+            sRecorded.put(file.getAbsolutePath(),
+                    new Recorded(file.length(), file.lastModified(), digest));
+        }
+    }
+
+    private static void forget(File file) {
+        String path = file.getAbsolutePath();
+        String prefix = path + File.separator;
+        synchronized (sRecorded) {
+            sRecorded.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added.size() + " ~" + changed.size() + " -" + removed.size();
+    }
+
+    private static TreeMap<String, File> listFiles(File root) {
+        TreeMap<String, File> files = new TreeMap<>();
+        collect(root, "", files);
+        return files;
+    }
+
+    private static void collect(File dir, String prefix, TreeMap<String, File> out) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                collect(child, path + File.separator, out);
+            } else {
+                out.put(path, child);
+            }
+        }
+    }
+
+    private static class DirectorySource implements Source {
+        private final TreeMap<String, File> mFiles;
+
+        DirectorySource(File root) {
+            mFiles = listFiles(root);
+        }
+
+        @Override
+        public Set<String> paths() {
+            return mFiles.keySet();
+        }
+
+        @Override
+        public long length(String path) {
+            return mFiles.get(path).length();
+        }
+
+        @Override
+        public String digest(String path) {
+            return ThemeDiff.digest(mFiles.get(path));
+        }
+
+        @Override
+        public boolean copy(String path, File dest) {
+            return IOUtils.bufferedCopy(mFiles.get(path), dest);
+        }
+    }
+
+    private static class Recorded {
+        final long length;
+        final long modified;
+        final String digest;
+
+        Recorded(long length, long modified, String digest) {
+            this.length = length;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.substratum;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A single step of a batch passed to IInterfacerInterface.runFileOperations. Operations between
+ * two barriers do not depend on each other and may run in parallel; everything before a barrier
+ * has finished before anything after it starts.
+ */
+public final class FileOperation implements Parcelable {
+    public static final int TYPE_COPY = 0;
+    public static final int TYPE_MOVE = 1;
+    public static final int TYPE_MKDIR = 2;
+    public static final int TYPE_DELETE = 3;
+    public static final int TYPE_BARRIER = 4;
+
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_FAILED = 1;
+    public static final int RESULT_NOT_FOUND = 2;
+    public static final int RESULT_UNSUPPORTED = 3;
+
+    public final int type;
+    public final String source;
+    public final String destination;
+    public final boolean withParent;
+
+    private FileOperation(int type, String source, String destination, boolean withParent) {
+        this.type = type;
+        this.source = source;
+        this.destination = destination;
+        this.withParent = withParent;
+    }
+
+    public static FileOperation copy(String source, String destination) {
+        return new FileOperation(TYPE_COPY, source, destination, false);
+    }
+
+    public static FileOperation move(String source, String destination) {
+        return new FileOperation(TYPE_MOVE, source, destination, false);
+    }
+
+    public static FileOperation mkdir(String destination) {
+        return new FileOperation(TYPE_MKDIR, null, destination, false);
+    }
+
+    public static FileOperation delete(String directory, boolean withParent) {
+        return new FileOperation(TYPE_DELETE, directory, null, withParent);
+    }
+
+    public static FileOperation barrier() {
+        return new FileOperation(TYPE_BARRIER, null, null, false);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(type);
+        dest.writeString(source);
+        dest.writeString(destination);
+        dest.writeInt(withParent ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "FileOperation{type=" + type + ", source=" + source + ", destination=" +
+                destination + ", withParent=" + withParent + "}";
+    }
+
+    public static final Creator<FileOperation> CREATOR = new Creator<FileOperation>() {
+        @Override
+        public FileOperation createFromParcel(Parcel in) {
+            return new FileOperation(in.readInt(), in.readString(), in.readString(),
+                    in.readInt() != 0);
+        }
+
+        @Override
+        public FileOperation[] newArray(int size) {
+            return new FileOperation[size];
+        }
+    };
+}
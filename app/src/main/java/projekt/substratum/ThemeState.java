@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.substratum;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What is currently applied, as returned by IInterfacerInterface.getThemeState. The state is
+ * valid for {@link #changeCounter}: as long as IInterfacerInterface.getChangeCounter returns the
+ * same value nothing has changed and there is no need to query the state again.
+ */
+public final class ThemeState implements Parcelable {
+    public final long changeCounter;
+    // Enabled overlays of the system user, grouped by target in ascending priority
+    public final List<String> overlays;
+    public final String fontPack;
+    public final String fontHash;
+    public final String soundPack;
+    // Sound name (e.g. "ringtone", "lock_sound") to the themed file playing it
+    public final Bundle soundFiles;
+    public final boolean bootAnimation;
+
+    public ThemeState(long changeCounter, List<String> overlays, String fontPack,
+                      String fontHash, String soundPack, Bundle soundFiles,
+                      boolean bootAnimation) {
+        this.changeCounter = changeCounter;
+        this.overlays = Collections.unmodifiableList(new ArrayList<>(overlays));
+        this.fontPack = fontPack;
+        this.fontHash = fontHash;
+        this.soundPack = soundPack;
+        this.soundFiles = new Bundle(soundFiles);
+        this.bootAnimation = bootAnimation;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(changeCounter);
+        dest.writeStringList(overlays);
+        dest.writeString(fontPack);
+        dest.writeString(fontHash);
+        dest.writeString(soundPack);
+        dest.writeBundle(soundFiles);
+        dest.writeInt(bootAnimation ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ThemeState{changeCounter=" + changeCounter + ", overlays=" + overlays.size() +
+                ", fontPack=" + fontPack + ", fontHash=" + fontHash + ", soundPack=" +
+                soundPack + ", soundFiles=" + soundFiles.keySet() + ", bootAnimation=" +
+                bootAnimation + "}";
+    }
+
+    public static final Creator<ThemeState> CREATOR = new Creator<ThemeState>() {
+        @Override
+        public ThemeState createFromParcel(Parcel in) {
+            return new ThemeState(in.readLong(), in.createStringArrayList(), in.readString(),
+                    in.readString(), in.readString(),
+                    in.readBundle(ThemeState.class.getClassLoader()), in.readInt() != 0);
+        }
+
+        @Override
+        public ThemeState[] newArray(int size) {
+            return new ThemeState[size];
+        }
+    };
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.benchmark;
+
+import android.os.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import projekt.interfacer.utils.Durability;
+import projekt.interfacer.utils.IOUtils;
+
+/**
+ * Throughput of the IOUtils routines used by font, sound and boot animation applies. Each
+ * benchmark works on a generated pack of the requested kind; run with the gc profiler to get
+ * allocation rate and collection counts alongside the scores.
+ */
+@State(Scope.Thread)
+@SuppressWarnings("try")
+public class IOUtilsBenchmark {
+    private static final int FILE_PERMISSIONS =
+            FileUtils.S_IRWXU | FileUtils.S_IRGRP | FileUtils.S_IRWXO;
+    private static final int FOLDER_PERMISSIONS =
+            FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH | FileUtils.S_IXOTH;
+
+    @Param({"fonts", "sounds"})
+    public String kind;
+
+    private File mRoot;
+    private File mPack;
+    private File mArchive;
+    private Set<String> mEntries;
+    private File mLargeFile;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void createFixtures() throws IOException {
+        mRoot = ThemePackFixtures.createTempDir("interfacer-bench");
+        mPack = new File(mRoot, "pack");
+        mPack.mkdirs();
+        ThemePackFixtures.createPack(kind, mPack, 42);
+
+        mArchive = new File(mRoot, kind + ".zip");
+        ThemePackFixtures.zip(mPack, mArchive);
+        mEntries = ThemePackFixtures.entries(mPack);
+
+        // Boot animations are a single archive of several MiB
+        mLargeFile = new File(mRoot, "bootanimation.zip");
+        ThemePackFixtures.write(mLargeFile, 8 * 1024 * 1024, new Random(7));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixtures() {
+        ThemePackFixtures.delete(mRoot);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() {
+        mTarget = new File(mRoot, "target");
+        ThemePackFixtures.delete(mTarget);
+    }
+
+    @Benchmark
+    public File bufferedCopy() {
+        IOUtils.bufferedCopy(mLargeFile, mTarget);
+        return mTarget;
+    }
+
+    @Benchmark
+    public File copyFolder() {
+        IOUtils.copyFolder(mPack, mTarget);
+        return mTarget;
+    }
+
+    @Benchmark
+    public File copyFolderSyncPerCommit() {
+        try (Durability.Barrier barrier = Durability.begin(Durability.Mode.COMMIT)) {
+            IOUtils.copyFolder(mPack, mTarget);
+        }
+        return mTarget;
+    }
+
+    @Benchmark
+    public File copyFolderSyncPerFile() {
+        try (Durability.Barrier barrier = Durability.begin(Durability.Mode.FILE)) {
+            IOUtils.copyFolder(mPack, mTarget);
+        }
+        return mTarget;
+    }
+
+    @Benchmark
+    public File unzip() {
+        IOUtils.unzip(mArchive.getAbsolutePath(), mTarget.getAbsolutePath());
+        return mTarget;
+    }
+
+    @Benchmark
+    public Map<String, byte[]> unzipToMemory() throws IOException {
+        try (InputStream in = new FileInputStream(mArchive)) {
+            return IOUtils.unzipToMemory(in, mEntries, Integer.MAX_VALUE, null);
+        }
+    }
+
+    @Benchmark
+    public File setPermissionsRecursive() {
+        IOUtils.setPermissionsRecursive(mPack, FILE_PERMISSIONS, FOLDER_PERMISSIONS);
+        return mPack;
+    }
+
+    @State(Scope.Thread)
+    public static class DeleteState {
+        File tree;
+
+        @Setup(Level.Invocation)
+        public void createTree(IOUtilsBenchmark benchmark) {
+            // Level.Invocation setup is costly, but a delete needs a fresh tree every time
+            tree = new File(benchmark.mRoot, "delete");
+            IOUtils.copyFolder(benchmark.mPack, tree);
+        }
+    }
+
+    @Benchmark
+    public boolean deleteRecursive(DeleteState state) {
+        IOUtils.deleteRecursive(state.tree);
+        return state.tree.exists();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package projekt.interfacer.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates file trees and archives shaped like the packs the interfacer handles: a font pack
+ * is a flat folder of a few dozen TTFs plus a fonts.xml, a sound pack is a handful of short
+ * clips spread over the ui, alarms, notifications and ringtones folders.
+ */
+final class ThemePackFixtures {
+    private static final String[] FONT_STYLES = {
+            "Regular", "Italic", "Bold", "BoldItalic", "Light", "LightItalic", "Medium",
+            "MediumItalic", "Thin", "ThinItalic", "Black", "BlackItalic"
+    };
+    private static final String[] FONT_FAMILIES = {
+            "Roboto", "RobotoCondensed", "NotoSerif"
+    };
+    private static final String[][] SOUNDS = {
+            {"ui", "Effect_Tick.ogg"},
+            {"ui", "Lock.ogg"},
+            {"ui", "Unlock.ogg"},
+            {"ui", "LowBattery.ogg"},
+            {"alarms", "alarm.ogg"},
+            {"notifications", "notification.ogg"},
+            {"ringtones", "ringtone.ogg"},
+    };
+
+    private ThemePackFixtures() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void createPack(String kind, File root, long seed) throws IOException {
+        Random random = new Random(seed);
+
+        if ("fonts".equals(kind)) {
+            for (String family : FONT_FAMILIES) {
+                for (String style : FONT_STYLES) {
+                    // Between 100 and 400 KiB per face, like the Roboto family
+                    write(new File(root, family + "-" + style + ".ttf"),
+                            (100 + random.nextInt(300)) * 1024, random);
+                }
+            }
+            write(new File(root, "fonts.xml"), 40 * 1024, random);
+        } else {
+            for (String[] sound : SOUNDS) {
+                File dir = new File(root, sound[0]);
+                dir.mkdirs();
+                // UI clips are tiny, ringtones and alarms are a few hundred KiB
+                int size = "ui".equals(sound[0]) ? 4 + random.nextInt(28) :
+                        150 + random.nextInt(350);
+                write(new File(dir, sound[1]), size * 1024, random);
+            }
+        }
+    }
+
+    static void zip(File root, File archive) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(archive)))) {
+            zip(root, "", out);
+        }
+    }
+
+    /**
+     * Names the files under root get in an archive written by {@link #zip(File, File)}.
+     */
+    static Set<String> entries(File root) {
+        Set<String> entries = new HashSet<>();
+        entries(root, "", entries);
+        return entries;
+    }
+
+    static void write(File file, int size, Random random) throws IOException {
+        byte[] buffer = new byte[size];
+        random.nextBytes(buffer);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(buffer);
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void entries(File dir, String prefix, Set<String> entries) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                entries(child, prefix + child.getName() + "/", entries);
+            } else {
+                entries.add(prefix + child.getName());
+            }
+        }
+    }
+
+    private static void zip(File dir, String prefix, ZipOutputStream out) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            String name = prefix + child.getName();
+            if (child.isDirectory()) {
+                out.putNextEntry(new ZipEntry(name + "/"));
+                out.closeEntry();
+                zip(child, name + "/", out);
+            } else {
+                out.putNextEntry(new ZipEntry(name));
+                Files.copy(child.toPath(), out);
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the framework Process class. Thread priorities are only remembered, the
+ * benchmarks always run at the priority the JVM gave them.
+ */
+public final class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private static final ThreadLocal<Integer> sPriority = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return THREAD_PRIORITY_DEFAULT;
+        }
+    };
+
+    private Process() {
+    }
+
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+
+    public static int getThreadPriority(int tid) {
+        return sPriority.get();
+    }
+
+    public static void setThreadPriority(int tid, int priority) {
+        sPriority.set(priority);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the hidden framework SELinux class, there are no labels to restore here.
+ */
+public final class SELinux {
+    private SELinux() {
+    }
+
+    public static boolean restorecon(File file) {
+        return true;
+    }
+
+    public static boolean restoreconRecursive(File file) {
+        return true;
+    }
+}
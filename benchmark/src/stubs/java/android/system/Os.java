@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016-2017 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * Substratum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Substratum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Substratum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM stand-in for libcore's Os, only covering the calls IOUtils makes.
+ */
+public final class Os {
+    // Plain Java cannot open a directory as a descriptor, hand out placeholders for channels
+    private static final Map<FileDescriptor, FileChannel> sOpen = new ConcurrentHashMap<>();
+
+    private Os() {
+    }
+
+    public static FileDescriptor open(String path, int flags, int mode) throws ErrnoException {
+        try {
+            FileDescriptor fd = new FileDescriptor();
+            sOpen.put(fd, FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+            return fd;
+        } catch (NoSuchFileException e) {
+            throw new ErrnoException("open", OsConstants.ENOENT);
+        } catch (IOException e) {
+            throw new ErrnoException("open", OsConstants.EIO);
+        }
+    }
+
+    public static void fsync(FileDescriptor fd) throws ErrnoException {
+        try {
+            sOpen.get(fd).force(true);
+        } catch (IOException e) {
+            throw new ErrnoException("fsync", OsConstants.EIO);
+        }
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+        try {
+            sOpen.remove(fd).close();
+        } catch (IOException e) {
+            throw new ErrnoException("close", OsConstants.EIO);
+        }
+    }
+
+    public static void rename(String oldPath, String newPath) throws ErrnoException {
+        try {
+            Files.move(Paths.get(oldPath), Paths.get(newPath),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new ErrnoException("rename", OsConstants.EXDEV);
+        } catch (IOException e) {
+            throw new ErrnoException("rename", OsConstants.EIO);
+        }
+    }
+}